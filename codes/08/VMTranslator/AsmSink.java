@@ -0,0 +1,51 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/// Output file for the generated assembly. Hack assembly is plain ASCII, so
+/// characters are stored as single bytes into one reused buffer, without a
+/// charset encoder, and the buffer goes to a FileChannel whenever it fills.
+public class AsmSink {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    public AsmSink(String path) throws IOException {
+        this.channel = FileChannel.open(Paths.get(path),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    }
+
+    /// code that already holds its line breaks
+    public void write(CharSequence code) throws IOException {
+        int length = code.length();
+        int i = 0;
+        while (i < length) {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            byte[] bytes = buffer.array();
+            int position = buffer.position();
+            int end = Math.min(length, i + buffer.remaining());
+            while (i < end) {
+                bytes[position++] = (byte) code.charAt(i++);
+            }
+            buffer.position(position);
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    public void close() throws IOException {
+        flush();
+        channel.close();
+    }
+}
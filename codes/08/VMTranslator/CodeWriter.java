@@ -1,26 +1,331 @@
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 public class CodeWriter {
+    // entry points of the shared call / return routines
+    private static final String CALL_ROUTINE = "VM$CALL";
+    private static final String RETURN_ROUTINE = "VM$RETURN";
+    // comparisons with a shared routine, entered as VM$EQ, VM$GT and VM$LT
+    private static final String[] COMPARES = {"eq", "gt", "lt"};
+
     private int jumpCounter = 0;
-    private BufferedWriter outPrinter;
+    // the .asm written on close, or null when only binary output is kept
+    private String asmPath;
+    // the .hack or packed binary assembled on close, or null
+    private String hackPath = null;
+    private boolean packed = false;
+    // generated code, one instruction or label per line, flushed on close;
+    // kept as one buffer rather than a String per line, which is what
+    // dominated memory and GC time on large programs
+    private StringBuilder code = new StringBuilder();
+    private Peephole peephole;
     private int labelCounter = 0;
     private String fileName;
+    private String functionName;
+
+    // shared call / return mode and its statistics
+    private boolean sharedCalls = false;
+    private int romSize = 0;
+    private int callSites = 0;
+    private int returnSites = 0;
+    private int romSaved = 0;
+
+    // shared comparison mode: one bit per entry of COMPARES that is used
+    private boolean sharedCompares = false;
+    private int comparesUsed = 0;
+    private int compareSites = 0;
+
+    // whether the loop that keeps the program out of the shared routines
+    // has been emitted
+    private boolean routinesGuarded = false;
+
+    // comparisons fused with the if-goto that follows them
+    private boolean fuseBranches = false;
+    private int fusedBranches = 0;
+
+    // frame-elision calling convention and its statistics
+    private FrameElision frames = null;
+    private int elidedCalls = 0;
+    private int elidedReturns = 0;
+    private int frameSaved = 0;
+
+    // calls that return their result right away, run in the caller's frame;
+    // one "caller -> callee" entry per converted call
+    private boolean tailCalls = false;
+    private List<String> tailCallSites = new ArrayList<>();
+
+    // function prologues: weight of a cycle against an instruction when
+    // picking how locals are zeroed, or a negative weight for the standard
+    // push constant 0 per local; the number of prologues of every kind
+    private double prologueWeight = -1;
+    private boolean localsRoutineUsed = false;
+    private int unrolledPrologues = 0;
+    private int loopPrologues = 0;
+    private int sharedPrologues = 0;
+
+    // per-function size profile, and the command type being emitted
+    private FunctionProfile profile = null;
+    private CmdType emitting = null;
+
+    // top-of-stack caching: whether the top of the stack is held in D
+    // instead of RAM[SP-1]; SP then points at the slot it belongs in
+    private boolean tosCaching = false;
+    private boolean tosInD = false;
 
     public void setFileName(String fileName) {
         this.fileName = fileName;
     }
 
+    /// Emit one global call routine and one global return routine instead of
+    /// inlining the frame setup and teardown at every call site.
+    public void setSharedCalls(boolean sharedCalls) {
+        this.sharedCalls = sharedCalls;
+    }
+
+    /// Translate eq, gt and lt into a jump to one shared routine per
+    /// comparison, with the return address in R15, instead of inlining the
+    /// whole comparison with its two labels at every use.
+    public void setSharedCompares(boolean sharedCompares) {
+        this.sharedCompares = sharedCompares;
+    }
+
+    /// Translate a comparison followed by an optional not and an if-goto
+    /// into one subtraction and a conditional jump
+    public void setFuseBranches(boolean fuseBranches) {
+        this.fuseBranches = fuseBranches;
+    }
+
+    /// Save and restore only the pointers the callee writes, as worked out
+    /// by frames. Calls through the shared call routine keep the full frame.
+    public void setFrameElision(FrameElision frames) {
+        this.frames = frames;
+    }
+
+    /// Translate a call followed by a return into a jump that reuses the
+    /// frame of the caller, so tail recursion runs in constant stack space
+    public void setTailCalls(boolean tailCalls) {
+        this.tailCalls = tailCalls;
+    }
+
+    /// Zero the locals of every function in the cheapest of three ways: an
+    /// unrolled run of stores, a counted loop or a jump to one shared loop.
+    /// The cost of each is its instructions plus weight times its cycles,
+    /// so 0 builds for size and a large weight for speed.
+    public void setPrologueWeight(double weight) {
+        this.prologueWeight = weight;
+    }
+
+    /// Count the generated instructions per VM function into profile
+    public void setProfile(FunctionProfile profile) {
+        this.profile = profile;
+    }
+
+    /// Keep the top of the stack in D inside basic blocks. It is spilled to
+    /// the stack at labels, jumps, calls and returns, so every jump target
+    /// still sees the whole stack in RAM.
+    public void setTosCaching(boolean tosCaching) {
+        this.tosCaching = tosCaching;
+    }
+
+    /// Run the peephole optimizer over the generated code before it is written
+    public void setPeephole(Peephole peephole) {
+        this.peephole = peephole;
+    }
+
     public CodeWriter(String writer) throws IOException {
-        this.outPrinter = new BufferedWriter(new FileWriter(writer));
+        this.asmPath = writer;
+    }
+
+    /// Assemble the code in process on close and write it to hackPath,
+    /// as .hack text or, when packed, as two bytes per word. The .asm is
+    /// only written as well when keepAsm is set.
+    public void setHackOutput(String hackPath, boolean packed, boolean keepAsm) {
+        this.hackPath = hackPath;
+        this.packed = packed;
+        if (!keepAsm) {
+            this.asmPath = null;
+        }
+    }
+
+    private CodeWriter() {
+    }
+
+    /// A writer for one input file that only buffers its code. It has its
+    /// own label counters; its labels carry the file name, so the parts of
+    /// several files can be generated independently and appended in order.
+    private CodeWriter(CodeWriter parent, String fileName) {
+        this.sharedCalls = parent.sharedCalls;
+        this.tosCaching = parent.tosCaching;
+        this.sharedCompares = parent.sharedCompares;
+        this.fuseBranches = parent.fuseBranches;
+        this.profile = parent.profile == null ? null : new FunctionProfile();
+        this.frames = parent.frames;
+        this.tailCalls = parent.tailCalls;
+        this.prologueWeight = parent.prologueWeight;
+        this.fileName = fileName;
+    }
+
+    public CodeWriter forFile(String fileName) {
+        return new CodeWriter(this, fileName);
+    }
+
+    /// Append the code and the statistics of a writer made by forFile
+    public void append(CodeWriter part) {
+        code.append(part.code);
+        romSize += part.romSize;
+        callSites += part.callSites;
+        returnSites += part.returnSites;
+        romSaved += part.romSaved;
+        comparesUsed |= part.comparesUsed;
+        compareSites += part.compareSites;
+        fusedBranches += part.fusedBranches;
+        elidedCalls += part.elidedCalls;
+        elidedReturns += part.elidedReturns;
+        frameSaved += part.frameSaved;
+        tailCallSites.addAll(part.tailCallSites);
+        localsRoutineUsed |= part.localsRoutineUsed;
+        unrolledPrologues += part.unrolledPrologues;
+        loopPrologues += part.loopPrologues;
+        sharedPrologues += part.sharedPrologues;
+        if (profile != null && part.profile != null) {
+            profile.merge(part.profile);
+        }
+    }
+
+    /// Write the code and the statistics of a part, for the translation cache
+    public void writePart(BufferedWriter writer) throws IOException {
+        writer.write(String.format("%d %d %d %d %d %d %d %b %d %d %d\n", romSize, callSites, returnSites, romSaved,
+                comparesUsed, compareSites, fusedBranches,
+                localsRoutineUsed, unrolledPrologues, loopPrologues, sharedPrologues));
+        writer.append(code);
+    }
+
+    /// Read a part written by writePart, to be appended to this writer
+    public CodeWriter readPart(BufferedReader reader) throws IOException {
+        CodeWriter part = new CodeWriter(this, null);
+        String header = reader.readLine();
+        if (header == null) {
+            throw new IOException("Empty cache entry");
+        }
+        String[] stats = header.split(" ");
+        part.romSize = Integer.parseInt(stats[0]);
+        part.callSites = Integer.parseInt(stats[1]);
+        part.returnSites = Integer.parseInt(stats[2]);
+        part.romSaved = Integer.parseInt(stats[3]);
+        part.comparesUsed = Integer.parseInt(stats[4]);
+        part.compareSites = Integer.parseInt(stats[5]);
+        part.fusedBranches = Integer.parseInt(stats[6]);
+        part.localsRoutineUsed = Boolean.parseBoolean(stats[7]);
+        part.unrolledPrologues = Integer.parseInt(stats[8]);
+        part.loopPrologues = Integer.parseInt(stats[9]);
+        part.sharedPrologues = Integer.parseInt(stats[10]);
+        String instruction;
+        while ((instruction = reader.readLine()) != null) {
+            part.code.append(instruction).append('\n');
+        }
+        return part;
     }
 
     public void close() throws IOException {
-        outPrinter.close();
+        functionName = FunctionProfile.RUNTIME;
+        if (sharedCalls) {
+            writeSharedRoutines();
+        }
+        writeCompareRoutines();
+        if (localsRoutineUsed) {
+            emitRoutine(localsRoutine());
+        }
+        CharSequence finalCode = code;
+        if (peephole != null) {
+            StringBuilder optimized = new StringBuilder(code.length());
+            for (String instruction : peephole.optimize(lines(code))) {
+                optimized.append(instruction).append('\n');
+            }
+            finalCode = optimized;
+        }
+        if (asmPath != null) {
+            AsmSink out = new AsmSink(asmPath);
+            out.write(finalCode);
+            out.close();
+        }
+        if (hackPath != null) {
+            int[] program = new HackAssembler().assemble(finalCode);
+            if (packed) {
+                HackAssembler.writePacked(program, hackPath);
+            } else {
+                HackAssembler.writeHack(program, hackPath);
+            }
+        }
+    }
+
+    private void emit(String asmCode) throws IOException {
+        int count = countInstructions(asmCode);
+        romSize += count;
+        if (profile != null && count > 0) {
+            profile.record(functionName == null ? FunctionProfile.TOP_LEVEL : functionName, emitting, count);
+        }
+        code.append(asmCode);
+        if (!asmCode.isEmpty() && asmCode.charAt(asmCode.length() - 1) != '\n') {
+            code.append('\n');
+        }
+    }
+
+    /// the instructions and labels of the code, one per entry
+    private static List<String> lines(CharSequence code) {
+        List<String> lines = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < code.length(); i++) {
+            if (code.charAt(i) == '\n') {
+                if (i > start) {
+                    lines.add(code.subSequence(start, i).toString());
+                }
+                start = i + 1;
+            }
+        }
+        return lines;
+    }
+
+    /// number of Hack instructions in a piece of assembly, labels excluded
+    private static int countInstructions(String asmCode) {
+        int count = 0;
+        int start = 0;
+        while (start < asmCode.length()) {
+            int end = asmCode.indexOf('\n', start);
+            if (end == -1) {
+                end = asmCode.length();
+            }
+            if (end > start && asmCode.charAt(start) != '(') {
+                count++;
+            }
+            start = end + 1;
+        }
+        return count;
     }
 
     public void writeAssembly(CmdType cmdType, String arg1, Integer arg2) throws IOException {
+        if (profile != null && cmdType == CmdType.CCall) {
+            profile.recordCall(arg1);
+        }
+        emitting = cmdType;
+        emit(translate(cmdType, arg1, arg2));
+        emitting = null;
+    }
+
+    /// Number of Hack instructions a VM command translates to in the
+    /// standard mode, used by the IR passes to estimate their savings
+    public static int costOf(CmdType cmdType, String arg1, int arg2) {
+        CodeWriter scratch = new CodeWriter();
+        scratch.fileName = "cost";
+        return countInstructions(scratch.translate(cmdType, arg1, arg2));
+    }
+
+    private String translate(CmdType cmdType, String arg1, Integer arg2) {
+        if (tosCaching) {
+            return translateCached(cmdType, arg1, arg2);
+        }
         String asmCode = "";
         switch (cmdType) {
             case CArithmetic:
@@ -33,13 +338,13 @@ public class CodeWriter {
                 asmCode = writePop(arg1, arg2);
                 break;
             case CLabel:
-                asmCode = String.format("(%s)\n", arg1);
+                asmCode = "(" + scopedLabel(arg1) + ")\n";
                 break;
             case CGoto:
-                asmCode = String.format("@%s\n0;JMP\n", arg1);
+                asmCode = "@" + scopedLabel(arg1) + "\n0;JMP\n";
                 break;
             case CIf:
-                asmCode = "@SP\nAM=M-1\nD=M\nA=A+1\n@" + arg1 + "\nD;JNE\n";
+                asmCode = "@SP\nAM=M-1\nD=M\nA=A+1\n@" + scopedLabel(arg1) + "\nD;JNE\n";
                 break;
             case CFunction:
                 asmCode = writeFunction(arg1, arg2);
@@ -53,9 +358,247 @@ public class CodeWriter {
             default:
                 throw new UnsupportedOperationException("Command type not supported.");
         }
-        outPrinter.write(asmCode);
+        return asmCode;
+    }
+
+    /// Write the commands [from, to) of an IR program
+    public void writeProgram(VMProgram program, int from, int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            int op = program.op(i);
+            if (fuseBranches && (op == VMProgram.EQ || op == VMProgram.GT || op == VMProgram.LT)) {
+                // a comparison, any number of nots and an if-goto
+                int end = i + 1;
+                while (end < to && program.op(end) == VMProgram.NOT) {
+                    end++;
+                }
+                if (end < to && program.op(end) == VMProgram.IF_GOTO) {
+                    boolean negated = (end - i - 1) % 2 == 1;
+                    emitting = CmdType.CIf;
+                    emit(compareBranch(program.arg1Name(i), negated, program.arg1Name(end)));
+                    emitting = null;
+                    i = end;
+                    continue;
+                }
+            }
+            if (tailCalls && op == VMProgram.CALL && i + 1 < to && program.op(i + 1) == VMProgram.RETURN
+                    && canTailCall(program.arg1Name(i))) {
+                if (profile != null) {
+                    profile.recordCall(program.arg1Name(i));
+                }
+                emitting = CmdType.CCall;
+                emit(tailCall(program.arg1Name(i), program.arg2(i)));
+                emitting = null;
+                i++;
+                continue;
+            }
+            writeAssembly(VMProgram.cmdType(op), program.arg1Name(i), program.arg2(i));
+        }
+        emit(spill());
+    }
+
+    /// A call outside of a function has no frame to reuse. With frame
+    /// elision the callee's return restores the pointers in its own mask,
+    /// which have to be the ones the caller's frame holds.
+    private boolean canTailCall(String callee) {
+        if (functionName == null) {
+            return false;
+        }
+        return frames == null || frames.savedPointers(callee) == frames.savedPointers(functionName);
+    }
+
+    /// A call whose result is returned right away: the arguments take the
+    /// place of the caller's arguments, the caller's saved frame follows
+    /// them and the callee is entered with a jump, so its return goes
+    /// straight back to the caller's caller. A function calling itself has
+    /// as many arguments as it was called with, so its frame stays in place
+    /// and only the arguments move.
+    private String tailCall(String callee, int numArgs) {
+        tailCallSites.add(functionName + " -> " + callee);
+        StringBuilder sb = new StringBuilder(spill());
+        tosInD = false;
+        int words = numArgs;
+        if (!callee.equals(functionName)) {
+            // push return address, LCL, ARG, THIS and THAT of the frame
+            for (int slot = 5; slot >= 1; slot--) {
+                sb.append("@LCL\nD=M\n@" + slot + "\nA=D-A\nD=M\n@SP\nAM=M+1\nA=A-1\nM=D\n");
+            }
+            words += 5;
+        }
+        // move the words down to ARG; the source is above the destination,
+        // so copying upwards never overwrites a word before it is read
+        if (words > 0) {
+            sb.append("@ARG\nD=M\n@R13\nM=D\n");
+            sb.append("@SP\nD=M\n@" + words + "\nD=D-A\n@R14\nM=D\n");
+        }
+        for (int i = 0; i < words; i++) {
+            sb.append("@R14\nAM=M+1\nA=A-1\nD=M\n@R13\nAM=M+1\nA=A-1\nM=D\n");
+        }
+        if (!callee.equals(functionName)) {
+            // R13 points just past the moved frame
+            sb.append("@R13\nD=M\n@LCL\nM=D\n");
+        }
+        sb.append("@LCL\nD=M\n@SP\nM=D\n");
+        sb.append("@" + callee + "\n0;JMP\n");
+        return sb.toString();
+    }
+
+    /// A comparison whose result only feeds an if-goto: subtract the
+    /// operands and jump on the sign of the difference, with the condition
+    /// inverted when the result was negated, without building a boolean
+    private String compareBranch(String command, boolean negated, String label) {
+        String jumpType;
+        if (command.equals("gt")) {
+            jumpType = negated ? "JLE" : "JGT";
+        } else if (command.equals("lt")) {
+            jumpType = negated ? "JGE" : "JLT";
+        } else {
+            jumpType = negated ? "JNE" : "JEQ";
+        }
+        fusedBranches++;
+        return fillD() + "@SP\nAM=M-1\nD=M-D\n@" + scopedLabel(label) + "\nD;" + jumpType + "\n";
+    }
+
+    /// Translation with the top of the stack cached in D. Commands inside a
+    /// basic block pass their result in D; everything that can be reached
+    /// by or leaves through a jump spills it first.
+    private String translateCached(CmdType cmdType, String arg1, Integer arg2) {
+        switch (cmdType) {
+            case CArithmetic:
+                return cachedArithmetic(arg1);
+            case CPush:
+                return spill() + loadD(arg1, arg2);
+            case CPop:
+                return fillD() + storeD(arg1, arg2);
+            case CIf: {
+                String asmCode = fillD() + "@" + scopedLabel(arg1) + "\nD;JNE\n";
+                tosInD = false;
+                return asmCode;
+            }
+            case CLabel:
+            case CGoto:
+            case CFunction:
+            case CCall:
+            case CReturn: {
+                String asmCode = spill();
+                tosCaching = false;
+                asmCode += translate(cmdType, arg1, arg2);
+                tosCaching = true;
+                return asmCode;
+            }
+            default:
+                throw new UnsupportedOperationException("Command type not supported.");
+        }
+    }
+
+    /// store the cached top of the stack to RAM[SP] and increment SP
+    private String spill() {
+        if (!tosInD) {
+            return "";
+        }
+        tosInD = false;
+        return "@SP\nAM=M+1\nA=A-1\nM=D\n";
+    }
+
+    /// make sure the top of the stack is in D, popping it if needed
+    private String fillD() {
+        if (tosInD) {
+            tosInD = false;
+            return "";
+        }
+        return "@SP\nAM=M-1\nD=M\n";
+    }
+
+    private String cachedArithmetic(String command) {
+        switch (command) {
+            case "not":
+            case "neg": {
+                if (!tosInD) {
+                    return writeArithmetic(command);
+                }
+                return command.equals("not") ? "D=!D\n" : "D=-D\n";
+            }
+            case "add":
+            case "sub":
+            case "and":
+            case "or": {
+                String operation = command.equals("add") ? "D=D+M" :
+                                   command.equals("sub") ? "D=M-D" :
+                                   command.equals("and") ? "D=D&M" : "D=D|M";
+                String asmCode = fillD() + "@SP\nAM=M-1\n" + operation + "\n";
+                tosInD = true;
+                return asmCode;
+            }
+            case "gt":
+            case "lt":
+            case "eq": {
+                if (sharedCompares) {
+                    // the shared routines work on the stack in memory
+                    return spill() + sharedCompareTemplate(command);
+                }
+                String jumpType = command.equals("gt") ? "JLE" :
+                                  command.equals("lt") ? "JGE" : "JNE";
+                jumpCounter++;
+                String falseLabel = uniqueLabel("FALSE", jumpCounter);
+                String continueLabel = uniqueLabel("CONTINUE", jumpCounter);
+                String asmCode = fillD() + "@SP\nAM=M-1\nD=M-D\n@" + falseLabel + "\nD;" + jumpType + "\nD=-1\n@" + continueLabel
+                        + "\n0;JMP\n(" + falseLabel + ")\nD=0\n(" + continueLabel + ")\n";
+                tosInD = true;
+                return asmCode;
+            }
+            default:
+                throw new UnsupportedOperationException("Arithmetic command not supported.");
+        }
+    }
+
+    /// load a segment entry into D, it becomes the cached top of the stack
+    private String loadD(String segment, int index) {
+        tosInD = true;
+        switch (segment) {
+            case "constant":
+                return index < 0 ? "@" + ~index + "\nD=!A\n" : "@" + index + "\nD=A\n";
+            case "static":
+                return "@" + fileName + "." + index + "\nD=M\n";
+            case "temp":
+                return "@R" + (5 + index) + "\nD=M\n";
+            case "pointer":
+                return "@" + getSegment(segment, index) + "\nD=M\n";
+            default:
+                String base = getSegment(segment, index);
+                if (index <= 1) {
+                    return "@" + base + "\nA=M" + (index == 1 ? "+1" : "") + "\nD=M\n";
+                }
+                return "@" + base + "\nD=M\n@" + index + "\nA=D+A\nD=M\n";
+        }
+    }
+
+    /// store D into a segment entry
+    private String storeD(String segment, int index) {
+        switch (segment) {
+            case "static":
+                return "@" + fileName + "." + index + "\nM=D\n";
+            case "temp":
+                return "@R" + (5 + index) + "\nM=D\n";
+            case "pointer":
+                return "@" + getSegment(segment, index) + "\nM=D\n";
+            default:
+                String base = getSegment(segment, index);
+                if (index <= 4) {
+                    return "@" + base + "\nA=M\n" + "A=A+1\n".repeat(index) + "M=D\n";
+                }
+                // A = (value + address) - value, then M = (value + address) - A
+                return "@R13\nM=D\n@" + base + "\nD=D+M\n@" + index + "\nD=D+A\n@R13\nA=D-M\nM=D-A\n";
+        }
+    }
+
+    /// labels are local to the function they appear in
+    private String scopedLabel(String label) {
+        return functionName == null ? label : functionName + "$" + label;
     }
 
+    /// generated labels are local to the file they are generated for
+    private String uniqueLabel(String base, int counter) {
+        return fileName == null ? base + counter : fileName + "$" + base + counter;
+    }
 
     private String getSegment(String segment, int index) {
         switch (segment) {
@@ -96,6 +639,10 @@ public class CodeWriter {
             case "gt":
             case "lt":
             case "eq":
+                if (sharedCompares) {
+                    result = sharedCompareTemplate(command);
+                    break;
+                }
                 String jumpType = command.equals("gt") ? "JLE" :
                                   command.equals("lt") ? "JGE" : "JNE";
                 jumpCounter++;
@@ -115,18 +662,24 @@ public class CodeWriter {
 
     public void writeInit() {
         String initCode = "@256\nD=A\n@SP\nM=D\n" + writeCall("Sys.init", jumpCounter);
+        if (profile != null) {
+            profile.recordCall("Sys.init");
+        }
         try {
-            outPrinter.write(initCode);
+            emit(initCode);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
     private String writePush(String segment, int index) {
-        if (segment.equals("constant")) {
-            return String.format("@%d\nD=A\n@SP\nA=M\nM=D\n@SP\nM=M+1\n", index);
+        if (segment.equals("constant") && index < 0) {
+            // folded constants can be negative, they are loaded as !~k
+            return "@" + ~index + "\nD=!A\n@SP\nA=M\nM=D\n@SP\nM=M+1\n";
+        } else if (segment.equals("constant")) {
+            return "@" + index + "\nD=A\n@SP\nA=M\nM=D\n@SP\nM=M+1\n";
         } else if (segment.equals("static")) {
-            return String.format("@%s.%d\nD=M\n@SP\nA=M\nM=D\n@SP\nM=M+1\n", fileName, index);
+            return "@" + fileName + "." + index + "\nD=M\n@SP\nA=M\nM=D\n@SP\nM=M+1\n";
         }
         String seg;
         boolean isDirect;
@@ -142,9 +695,9 @@ public class CodeWriter {
 
     private String writePop(String segment, int index) {
         if (segment.equals("temp")) {
-            return String.format("@SP\nAM=M-1\nD=M\n@R%d\nM=D\n", 5 + index);
+            return "@SP\nAM=M-1\nD=M\n@R" + (5 + index) + "\nM=D\n";
         } else if (segment.equals("static")) {
-            return String.format("@%s.%d\nD=A\n@R13\nM=D\n@SP\nAM=M-1\nD=M\n@R13\nA=M\nM=D\n", fileName, index);
+            return "@" + fileName + "." + index + "\nD=A\n@R13\nM=D\n@SP\nAM=M-1\nD=M\n@R13\nA=M\nM=D\n";
         }
         String seg;
         boolean isDirect;
@@ -159,19 +712,133 @@ public class CodeWriter {
     }
 
     private String writeFunction(String functionName, int numLocals) {
+        this.functionName = functionName;
         StringBuilder functionCode = new StringBuilder();
-        functionCode.append(String.format("(%s)\n", functionName));
+        functionCode.append("(").append(functionName).append(")\n");
+        if (prologueWeight >= 0 && numLocals > 0) {
+            functionCode.append(prologue(numLocals));
+            return functionCode.toString();
+        }
         for (int i = 0; i < numLocals; i++) {
             functionCode.append(writePush("constant", 0));
         }
         return functionCode.toString();
     }
 
+    /// The cheapest way to push numLocals zeros under prologueWeight; on a
+    /// tie the faster one
+    private String prologue(int numLocals) {
+        int[] sizes = {
+            countInstructions(unrolledLocalsTemplate(numLocals)),
+            countInstructions(loopLocalsTemplate(numLocals, "L")),
+            countInstructions(sharedLocalsTemplate(numLocals, "R")),
+        };
+        int[] cycles = {
+            sizes[0],
+            2 + 7 * numLocals,
+            sizes[2] + 3 + 7 * numLocals,
+        };
+        int best = 0;
+        for (int i = 1; i < sizes.length; i++) {
+            double cost = sizes[i] + prologueWeight * cycles[i];
+            double bestCost = sizes[best] + prologueWeight * cycles[best];
+            if (cost < bestCost || (cost == bestCost && cycles[i] < cycles[best])) {
+                best = i;
+            }
+        }
+        switch (best) {
+            case 0:
+                unrolledPrologues++;
+                return unrolledLocalsTemplate(numLocals);
+            case 1:
+                loopPrologues++;
+                return loopLocalsTemplate(numLocals, uniqueLabel("LOCALS", labelCounter++));
+            default:
+                sharedPrologues++;
+                localsRoutineUsed = true;
+                return sharedLocalsTemplate(numLocals, uniqueLabel("LOCALS_RETURN", labelCounter++));
+        }
+    }
+
+    /// zero stores walking A up the stack, then SP moved past them once
+    private String unrolledLocalsTemplate(int numLocals) {
+        if (numLocals == 1) {
+            return "@SP\nAM=M+1\nA=A-1\nM=0\n";
+        }
+        StringBuilder sb = new StringBuilder("@SP\nA=M\nM=0\n");
+        for (int i = 1; i < numLocals; i++) {
+            sb.append("A=A+1\nM=0\n");
+        }
+        sb.append("D=A+1\n@SP\nM=D\n");
+        return sb.toString();
+    }
+
+    /// one push of a zero per iteration, counted down in D
+    private String loopLocalsTemplate(int numLocals, String label) {
+        return "@" + numLocals + "\n" +
+                "D=A\n" +
+                "(" + label + ")\n" +
+                "@SP\n" +
+                "AM=M+1\n" +
+                "A=A-1\n" +
+                "M=0\n" +
+                "D=D-1\n" +
+                "@" + label + "\n" +
+                "D;JGT\n";
+    }
+
+    /// the count in D and the return address in R15, as for the shared
+    /// comparisons
+    private String sharedLocalsTemplate(int numLocals, String returnLabel) {
+        return "@" + returnLabel + "\n" +
+                "D=A\n" +
+                "@R15\n" +
+                "M=D\n" +
+                "@" + numLocals + "\n" +
+                "D=A\n" +
+                "@VM$LOCALS\n" +
+                "0;JMP\n" +
+                "(" + returnLabel + ")\n";
+    }
+
+    /// pushes D zeros and returns to the address in R15
+    private String localsRoutine() {
+        return "(VM$LOCALS)\n" +
+                "@SP\n" +
+                "AM=M+1\n" +
+                "A=A-1\n" +
+                "M=0\n" +
+                "D=D-1\n" +
+                "@VM$LOCALS\n" +
+                "D;JGT\n" +
+                "@R15\n" +
+                "A=M\n" +
+                "0;JMP\n";
+    }
+
     private String writeCall(String functionName, int numArgs) {
         // Generate a unique return label for the function call
-    String returnLabel = "RETURN_LABEL" + (labelCounter++);
-    StringBuilder sb = new StringBuilder();
+        String returnLabel = uniqueLabel("RETURN_LABEL", labelCounter++);
+        String inlineCode = callTemplate(functionName, numArgs, returnLabel, FrameElision.BOTH);
+        if (!sharedCalls) {
+            if (frames == null || frames.savedPointers(functionName) == FrameElision.BOTH) {
+                return inlineCode;
+            }
+            String elidedCode = callTemplate(functionName, numArgs, returnLabel, frames.savedPointers(functionName));
+            elidedCalls++;
+            frameSaved += countInstructions(inlineCode) - countInstructions(elidedCode);
+            return elidedCode;
+        }
+        String sharedCode = sharedCallTemplate(functionName, numArgs, returnLabel);
+        callSites++;
+        romSaved += countInstructions(inlineCode) - countInstructions(sharedCode);
+        return sharedCode;
+    }
 
+    /// saved tells which of THIS and THAT are pushed; the slot of the other
+    /// one is only skipped, so the frame layout stays the same
+    private String callTemplate(String functionName, int numArgs, String returnLabel, int saved) {
+    StringBuilder sb = new StringBuilder();
     // Append return address onto the stack instructions to StringBuilder
     sb.append("@" + returnLabel + "\n" + 
               "D=A\n" +             // Place return label address in D register
@@ -184,8 +851,12 @@ public class CodeWriter {
     // Append LCL, ARG, THIS, and THAT as part of the call environment
     sb.append(pushTemplate("LCL", 0, true));  // push LCL
     sb.append(pushTemplate("ARG", 0, true));  // push ARG
-    sb.append(pushTemplate("THIS", 0, true)); // push THIS
-    sb.append(pushTemplate("THAT", 0, true)); // push THAT
+    if (saved == 0) {
+        sb.append("@SP\nM=M+1\nM=M+1\n"); // skip both slots
+    } else {
+        sb.append((saved & FrameElision.THIS) != 0 ? pushTemplate("THIS", 0, true) : "@SP\nM=M+1\n"); // push THIS
+        sb.append((saved & FrameElision.THAT) != 0 ? pushTemplate("THAT", 0, true) : "@SP\nM=M+1\n"); // push THAT
+    }
 
     // Setup ARG = SP-n-5 for the called function
     sb.append("@SP\n" +
@@ -211,7 +882,210 @@ public class CodeWriter {
     return sb.toString();
     }
 
+    /// A call site in shared mode only loads the callee address, the number
+    /// of arguments and the return address into R13-R15 and jumps to the
+    /// shared call routine, which builds the frame.
+    private String sharedCallTemplate(String functionName, int numArgs, String returnLabel) {
+        return "@" + functionName + "\n" +
+                "D=A\n" +
+                "@R13\n" +
+                "M=D\n" +
+                (numArgs <= 1 ? "@R14\nM=" + numArgs + "\n" : "@" + numArgs + "\nD=A\n@R14\nM=D\n") +
+                "@" + returnLabel + "\n" +
+                "D=A\n" +
+                "@R15\n" +
+                "M=D\n" +
+                "@" + CALL_ROUTINE + "\n" +
+                "0;JMP\n" +
+                "(" + returnLabel + ")\n";
+    }
+
+    /// The shared call routine: R13 = callee, R14 = nArgs, R15 = return address
+    private String sharedCallRoutine() {
+        return "(" + CALL_ROUTINE + ")\n" +
+                pushTemplate("R15", 0, true) +  // push return address
+                pushTemplate("LCL", 0, true) +
+                pushTemplate("ARG", 0, true) +
+                pushTemplate("THIS", 0, true) +
+                pushTemplate("THAT", 0, true) +
+                "@SP\n" +
+                "D=M\n" +
+                "@5\n" +
+                "D=D-A\n" +
+                "@R14\n" +
+                "D=D-M\n" +          // D = SP - 5 - nArgs
+                "@ARG\n" +
+                "M=D\n" +
+                "@SP\n" +
+                "D=M\n" +
+                "@LCL\n" +
+                "M=D\n" +
+                "@R13\n" +
+                "A=M\n" +
+                "0;JMP\n";
+    }
+
+    private String sharedReturnRoutine() {
+        return "(" + RETURN_ROUTINE + ")\n" + returnTemplate(FrameElision.BOTH);
+    }
+
+    private void writeSharedRoutines() throws IOException {
+        String callRoutine = sharedCallRoutine();
+        String returnRoutine = sharedReturnRoutine();
+        if (callSites > 0) {
+            emitRoutine(callRoutine);
+            romSaved -= countInstructions(callRoutine);
+        }
+        if (returnSites > 0) {
+            emitRoutine(returnRoutine);
+            romSaved -= countInstructions(returnRoutine);
+        }
+    }
+
+    private String sharedCompareTemplate(String command) {
+        jumpCounter++;
+        for (int i = 0; i < COMPARES.length; i++) {
+            if (COMPARES[i].equals(command)) {
+                comparesUsed |= 1 << i;
+            }
+        }
+        compareSites++;
+        return compareSiteTemplate(command, uniqueLabel("CONTINUE", jumpCounter));
+    }
+
+    /// A comparison site stores its return address in R15 and jumps to the
+    /// shared routine, which leaves the result on the stack.
+    private String compareSiteTemplate(String command, String returnLabel) {
+        return "@" + returnLabel + "\n" +
+                "D=A\n" +
+                "@R15\n" +
+                "M=D\n" +
+                "@VM$" + command.toUpperCase() + "\n" +
+                "0;JMP\n" +
+                "(" + returnLabel + ")\n";
+    }
+
+    /// The shared routine of one comparison: pops y and x, pushes x op y
+    /// as -1 or 0 and returns to the address in R15
+    private String compareRoutine(String command) {
+        String routine = "VM$" + command.toUpperCase();
+        String jumpType = command.equals("gt") ? "JGT" :
+                          command.equals("lt") ? "JLT" : "JEQ";
+        return "(" + routine + ")\n" +
+                "@SP\n" +
+                "AM=M-1\n" +
+                "D=M\n" +
+                "A=A-1\n" +
+                "D=M-D\n" +
+                "M=-1\n" +          // true unless the jump is not taken
+                "@" + routine + "$END\n" +
+                "D;" + jumpType + "\n" +
+                "@SP\n" +
+                "A=M-1\n" +
+                "M=0\n" +
+                "(" + routine + "$END)\n" +
+                "@R15\n" +
+                "A=M\n" +
+                "0;JMP\n";
+    }
+
+    private void writeCompareRoutines() throws IOException {
+        for (int i = 0; i < COMPARES.length; i++) {
+            if ((comparesUsed & (1 << i)) != 0) {
+                emitRoutine(compareRoutine(COMPARES[i]));
+            }
+        }
+    }
+
+    /// Shared routines are placed after the program. A program that does
+    /// not end in a jump would run on into them, so the first one is
+    /// preceded by an endless loop that the program halts in instead.
+    private void emitRoutine(String routine) throws IOException {
+        if (!routinesGuarded) {
+            emit("(VM$HALT)\n@VM$HALT\n0;JMP\n");
+            routinesGuarded = true;
+        }
+        emit(routine);
+    }
+
+    /// Summary of the shared comparison mode: sites, ROM saved and the cost
+    /// of a single comparison in both modes
+    public String getCompareReport() {
+        int inline = countInstructions(arithmeticTemplate2("JNE"));
+        int site = countInstructions(compareSiteTemplate("eq", "R"));
+        int routine = countInstructions(compareRoutine("eq"));
+        int routines = Integer.bitCount(comparesUsed);
+        return String.format("shared compares: %d sites, %d routines, %d instructions saved, %d cycles per compare (inline: %d)\n",
+                compareSites, routines, compareSites * (inline - site) - routines * routine, site + routine, inline);
+    }
+
+    /// How many function prologues were built in each way
+    public String getPrologueReport() {
+        return String.format("prologues: %d unrolled, %d loops, %d shared%s\n", unrolledPrologues, loopPrologues,
+                sharedPrologues, localsRoutineUsed ? " (+" + countInstructions(localsRoutine()) + " routine)" : "");
+    }
+
+    /// Every call translated as a tail call
+    public String getTailCallReport() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("tail calls: %d\n", tailCallSites.size()));
+        for (String site : tailCallSites) {
+            sb.append("  ").append(site).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /// Calls and returns that save or restore fewer pointers, and the
+    /// instructions (and cycles, as the templates have no loops) saved
+    public String getFrameReport() {
+        return String.format("frame elision: %d call sites, %d returns, %d instructions saved\n",
+                elidedCalls, elidedReturns, frameSaved);
+    }
+
+    /// Number of fused branches and the instructions saved by each one
+    public String getBranchReport() {
+        int plain = countInstructions(arithmeticTemplate2("JNE")) + countInstructions("@SP\nA=M-1\nM=!M\n")
+                + countInstructions("@SP\nAM=M-1\nD=M\nA=A+1\n@L\nD;JNE\n");
+        int fused = countInstructions("@SP\nAM=M-1\nD=M\n@SP\nAM=M-1\nD=M-D\n@L\nD;JNE\n");
+        return String.format("fused branches: %d, %d instructions each instead of %d\n", fusedBranches, fused, plain);
+    }
+
+    /// Summary of the shared call mode: ROM saved over inlined calls and the
+    /// cost in cycles of a single call and return in both modes.
+    public String getCallReport() {
+        int inlineCall = countInstructions(callTemplate("f", 2, "R", FrameElision.BOTH));
+        int sharedCall = countInstructions(sharedCallTemplate("f", 2, "R")) + countInstructions(sharedCallRoutine());
+        int inlineReturn = countInstructions(returnTemplate(FrameElision.BOTH));
+        int sharedReturn = countInstructions(sharedReturnTemplate()) + countInstructions(sharedReturnRoutine());
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("ROM: %d instructions, %d call sites, %d returns\n", romSize, callSites, returnSites));
+        sb.append(String.format("shared calls saved %d instructions (inline build: %d)\n", romSaved, romSize + romSaved));
+        sb.append(String.format("call cost: %d cycles shared, %d inline\n", sharedCall, inlineCall));
+        sb.append(String.format("return cost: %d cycles shared, %d inline\n", sharedReturn, inlineReturn));
+        return sb.toString();
+    }
+
     private String writeReturn() {
+        if (!sharedCalls) {
+            if (frames == null || frames.savedPointers(functionName) == FrameElision.BOTH) {
+                return returnTemplate(FrameElision.BOTH);
+            }
+            String elidedCode = returnTemplate(frames.savedPointers(functionName));
+            elidedReturns++;
+            frameSaved += countInstructions(returnTemplate(FrameElision.BOTH)) - countInstructions(elidedCode);
+            return elidedCode;
+        }
+        returnSites++;
+        romSaved += countInstructions(returnTemplate(FrameElision.BOTH)) - countInstructions(sharedReturnTemplate());
+        return sharedReturnTemplate();
+    }
+
+    private String sharedReturnTemplate() {
+        return "@" + RETURN_ROUTINE + "\n0;JMP\n";
+    }
+
+    /// saved tells which of THIS and THAT the frame holds and are restored
+    private String returnTemplate(int saved) {
         return "@LCL\n" +
                 "D=M\n" +
                 "@R11\n" +
@@ -226,15 +1100,34 @@ public class CodeWriter {
                 "D=M\n" +
                 "@SP\n" +
                 "M=D+1\n" +
-                preFrameTemplate("THAT") +
-                preFrameTemplate("THIS") +
-                preFrameTemplate("ARG") +
-                preFrameTemplate("LCL") +
+                restoreFrameTemplate(saved) +
                 "@R12\n" +
                 "A=M\n" +
                 "0;JMP\n";
     }
 
+    /// Restore the saved pointers, walking R11 down the frame and jumping
+    /// over the slots that were not saved
+    private String restoreFrameTemplate(int saved) {
+        String[] positions = {"THAT", "THIS", "ARG", "LCL"};
+        boolean[] restore = {(saved & FrameElision.THAT) != 0, (saved & FrameElision.THIS) != 0, true, true};
+        StringBuilder sb = new StringBuilder();
+        int slot = 0;
+        for (int i = 0; i < positions.length; i++) {
+            if (!restore[i]) {
+                continue;
+            }
+            int gap = i + 1 - slot;
+            if (gap == 1) {
+                sb.append(preFrameTemplate(positions[i]));
+            } else {
+                sb.append("@" + gap + "\nD=A\n@R11\nAM=M-D\nD=M\n@" + positions[i] + "\nM=D\n");
+            }
+            slot = i + 1;
+        }
+        return sb.toString();
+    }
+
     private String preFrameTemplate(String position){
 
         return "@R11\n" +
@@ -251,17 +1144,19 @@ public class CodeWriter {
     }
 
     private String arithmeticTemplate2(String jumpType) {
-        return String.format("@SP\nAM=M-1\nD=M\nA=A-1\nD=M-D\n@FALSE%d\nD;%s\n@SP\nA=M-1\nM=-1\n@CONTINUE%d\n0;JMP\n(FALSE%d)\n@SP\nA=M-1\nM=0\n(CONTINUE%d)\n",
-                jumpCounter, jumpType, jumpCounter, jumpCounter, jumpCounter);
+        String falseLabel = uniqueLabel("FALSE", jumpCounter);
+        String continueLabel = uniqueLabel("CONTINUE", jumpCounter);
+        return "@SP\nAM=M-1\nD=M\nA=A-1\nD=M-D\n@" + falseLabel + "\nD;" + jumpType + "\n@SP\nA=M-1\nM=-1\n@" + continueLabel
+                + "\n0;JMP\n(" + falseLabel + ")\n@SP\nA=M-1\nM=0\n(" + continueLabel + ")\n";
     }
 
     private String pushTemplate(String segment, int index, boolean isDirect) {
-        String indexCode = isDirect ? "" : String.format("@%d\nA=D+A\nD=M\n", index);
-        return String.format("@%s\nD=M\n%s@SP\nA=M\nM=D\n@SP\nM=M+1\n", segment, indexCode);
+        String indexCode = isDirect ? "" : "@" + index + "\nA=D+A\nD=M\n";
+        return "@" + segment + "\nD=M\n" + indexCode + "@SP\nA=M\nM=D\n@SP\nM=M+1\n";
     }
 
     private String popTemplate(String segment, int index, boolean isDirect) {
-        String pointerAdjust = isDirect ? "D=A\n" : String.format("D=M\n@%d\nD=D+A\n", index);
-        return String.format("@%s\n%s@R13\nM=D\n@SP\nAM=M-1\nD=M\n@R13\nA=M\nM=D\n", segment, pointerAdjust);
+        String pointerAdjust = isDirect ? "D=A\n" : "D=M\n@" + index + "\nD=D+A\n";
+        return "@" + segment + "\n" + pointerAdjust + "@R13\nM=D\n@SP\nAM=M-1\nD=M\n@R13\nA=M\nM=D\n";
     }
 }
@@ -0,0 +1,120 @@
+import java.util.Arrays;
+
+/// Constant folding over the IR. Arithmetic on constants that were pushed
+/// in the same basic block is evaluated at translation time, in 16-bit
+/// two's complement, and replaced by a push of the result. Constants are
+/// propagated through pop temp / push temp pairs, and an if-goto on a
+/// constant becomes a goto or disappears.
+///
+/// A basic block ends at every label, goto, if-goto, function, call and
+/// return, so nothing is folded across a jump target and the temps are
+/// forgotten where another function could have written them.
+public class ConstantFolding {
+    private static final int TEMPS = 8;
+
+    private int folded = 0;
+    private int propagated = 0;
+    private int branches = 0;
+
+    /// synchronized, as the cached build folds several files at once
+    public synchronized VMProgram run(VMProgram program) {
+        VMProgram result = program.emptyCopy();
+        int[] tempValue = new int[TEMPS];
+        boolean[] tempKnown = new boolean[TEMPS];
+        for (int file = 0; file < program.fileCount(); file++) {
+            result.beginFile(program.fileName(file));
+            int blockStart = result.size();
+            Arrays.fill(tempKnown, false);
+            for (int i = program.fileStart(file); i < program.fileEnd(file); i++) {
+                int op = program.op(i);
+                int n = result.size();
+                if (op >= VMProgram.ADD && op <= VMProgram.NOT) {
+                    boolean unary = op == VMProgram.NEG || op == VMProgram.NOT;
+                    if (unary && isConstant(result, n - 1, blockStart)) {
+                        int value = evaluate(op, 0, result.arg2(n - 1));
+                        result.truncate(n - 1);
+                        result.add(VMProgram.PUSH, VMProgram.CONSTANT, value);
+                        folded++;
+                        continue;
+                    }
+                    if (!unary && isConstant(result, n - 2, blockStart) && isConstant(result, n - 1, blockStart)) {
+                        int value = evaluate(op, result.arg2(n - 2), result.arg2(n - 1));
+                        result.truncate(n - 2);
+                        result.add(VMProgram.PUSH, VMProgram.CONSTANT, value);
+                        folded++;
+                        continue;
+                    }
+                    result.copy(program, i);
+                } else if (op == VMProgram.PUSH && program.arg1(i) == VMProgram.TEMP && tempKnown[program.arg2(i)]) {
+                    result.add(VMProgram.PUSH, VMProgram.CONSTANT, tempValue[program.arg2(i)]);
+                    propagated++;
+                } else if (op == VMProgram.POP) {
+                    int segment = program.arg1(i);
+                    if (segment == VMProgram.TEMP) {
+                        int index = program.arg2(i);
+                        tempKnown[index] = isConstant(result, n - 1, blockStart);
+                        tempValue[index] = tempKnown[index] ? result.arg2(n - 1) : 0;
+                    } else if (segment == VMProgram.THIS || segment == VMProgram.THAT) {
+                        // this and that may point anywhere, temp included
+                        Arrays.fill(tempKnown, false);
+                    }
+                    result.copy(program, i);
+                } else if (op == VMProgram.IF_GOTO && isConstant(result, n - 1, blockStart)) {
+                    boolean taken = result.arg2(n - 1) != 0;
+                    result.truncate(n - 1);
+                    if (taken) {
+                        result.add(VMProgram.GOTO, program.arg1(i), 0);
+                    }
+                    branches++;
+                    blockStart = result.size();
+                    Arrays.fill(tempKnown, false);
+                } else {
+                    result.copy(program, i);
+                    if (op >= VMProgram.LABEL) {
+                        blockStart = result.size();
+                        Arrays.fill(tempKnown, false);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /// whether command i of the result is a push constant of the current block
+    private static boolean isConstant(VMProgram result, int i, int blockStart) {
+        return i >= blockStart && result.op(i) == VMProgram.PUSH && result.arg1(i) == VMProgram.CONSTANT;
+    }
+
+    /// Value of an arithmetic command on 16-bit operands, x below y on the
+    /// stack. The comparisons look at the sign of the 16-bit difference, the
+    /// same way the generated code does, so folding never changes a result.
+    private static int evaluate(int op, int x, int y) {
+        switch (op) {
+            case VMProgram.ADD:
+                return (short) (x + y);
+            case VMProgram.SUB:
+                return (short) (x - y);
+            case VMProgram.NEG:
+                return (short) -y;
+            case VMProgram.EQ:
+                return (short) (x - y) == 0 ? -1 : 0;
+            case VMProgram.GT:
+                return (short) (x - y) > 0 ? -1 : 0;
+            case VMProgram.LT:
+                return (short) (x - y) < 0 ? -1 : 0;
+            case VMProgram.AND:
+                return (short) (x & y);
+            case VMProgram.OR:
+                return (short) (x | y);
+            case VMProgram.NOT:
+                return (short) ~y;
+            default:
+                throw new IllegalArgumentException("Not an arithmetic command: " + op);
+        }
+    }
+
+    public String getReport() {
+        return String.format("constant folding: %d commands folded, %d temps propagated, %d branches resolved\n",
+                folded, propagated, branches);
+    }
+}
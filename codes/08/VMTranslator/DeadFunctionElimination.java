@@ -0,0 +1,81 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/// Link-time removal of functions that can never run. Starting at Sys.init,
+/// call edges are followed across all files; every function that is not
+/// reached is dropped from the program. Code outside of any function is
+/// always kept.
+public class DeadFunctionElimination {
+    private static final String ENTRY = "Sys.init";
+
+    private final List<String> removed = new ArrayList<>();
+    private int removedCommands = 0;
+    private int keptFunctions = 0;
+
+    public VMProgram run(VMProgram program) {
+        SymbolPool symbols = program.symbols();
+        int entry = symbols.find(ENTRY);
+        int[] starts = program.functionStarts();
+        if (entry == -1 || starts[entry] == -1) {
+            // no bootstrap, every function may be called from outside
+            return program;
+        }
+
+        // mark every function reachable through calls from Sys.init
+        boolean[] reachable = new boolean[symbols.size()];
+        Deque<Integer> work = new ArrayDeque<>();
+        reachable[entry] = true;
+        work.push(entry);
+        while (!work.isEmpty()) {
+            int start = starts[work.pop()];
+            int end = program.functionEnd(start);
+            for (int i = start + 1; i < end; i++) {
+                if (program.op(i) != VMProgram.CALL) {
+                    continue;
+                }
+                int callee = program.arg1(i);
+                if (!reachable[callee] && starts[callee] != -1) {
+                    reachable[callee] = true;
+                    work.push(callee);
+                }
+            }
+        }
+
+        // copy the program without the unreachable functions
+        VMProgram result = program.emptyCopy();
+        for (int file = 0; file < program.fileCount(); file++) {
+            result.beginFile(program.fileName(file));
+            boolean keep = true;
+            for (int i = program.fileStart(file); i < program.fileEnd(file); i++) {
+                if (program.op(i) == VMProgram.FUNCTION) {
+                    int function = program.arg1(i);
+                    keep = reachable[function];
+                    if (keep) {
+                        keptFunctions++;
+                    } else {
+                        removed.add(symbols.name(function));
+                    }
+                }
+                if (keep) {
+                    result.copy(program, i);
+                } else {
+                    removedCommands++;
+                }
+            }
+        }
+        return result;
+    }
+
+    /// the functions that were removed and how many commands they had
+    public String getReport() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("dead functions: removed %d functions (%d commands), kept %d\n",
+                removed.size(), removedCommands, keptFunctions));
+        for (String name : removed) {
+            sb.append("  ").append(name).append('\n');
+        }
+        return sb.toString();
+    }
+}
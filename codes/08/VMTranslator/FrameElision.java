@@ -0,0 +1,53 @@
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/// Analysis for the frame-elision calling convention. A call saves LCL,
+/// ARG, THIS and THAT so the return can restore them, but the callee only
+/// changes THIS and THAT through pop pointer 0/1; everything it calls
+/// restores its own changes before returning. So for every function the
+/// pointers it writes itself are the only ones its calls need to save and
+/// its returns need to restore.
+///
+/// The frame keeps its five slots; a slot that is not saved is skipped
+/// and holds garbage. Functions that are not in the program, and functions
+/// no call in the program reaches, which can only be entered from outside
+/// of it, keep the standard convention and save both.
+public class FrameElision {
+    public static final int THIS = 1;
+    public static final int THAT = 2;
+    public static final int BOTH = THIS | THAT;
+
+    // function name -> pointers it writes
+    private final Map<String, Integer> writes = new HashMap<>();
+    private final Set<String> called = new HashSet<>();
+
+    public FrameElision(VMProgram program) {
+        String function = null;
+        int mask = 0;
+        for (int i = 0; i < program.size(); i++) {
+            int op = program.op(i);
+            if (op == VMProgram.FUNCTION) {
+                if (function != null) {
+                    writes.merge(function, mask, (a, b) -> a | b);
+                }
+                function = program.arg1Name(i);
+                mask = 0;
+            } else if (op == VMProgram.POP && program.arg1(i) == VMProgram.POINTER) {
+                mask |= program.arg2(i) == 0 ? THIS : THAT;
+            } else if (op == VMProgram.CALL) {
+                called.add(program.arg1Name(i));
+            }
+        }
+        if (function != null) {
+            writes.merge(function, mask, (a, b) -> a | b);
+        }
+    }
+
+    /// the pointers a call of function saves and its return restores
+    public int savedPointers(String function) {
+        Integer mask = writes.get(function);
+        return mask == null || !called.contains(function) ? BOTH : mask;
+    }
+}
@@ -0,0 +1,135 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/// Size and cost profile of the generated code per VM function: the Hack
+/// instructions of its body, the number of call sites in the program, the
+/// largest translation of a single command of every command type and its
+/// share of the whole program. Code outside of functions, such as the
+/// bootstrap, is listed as "(top level)" and the shared routines as
+/// "(runtime)". Counts are taken before the peephole optimizer runs.
+public class FunctionProfile {
+    public static final String TOP_LEVEL = "(top level)";
+    public static final String RUNTIME = "(runtime)";
+
+    private static final CmdType[] TYPES = CmdType.values();
+
+    private static class Entry {
+        int instructions = 0;
+        int commands = 0;
+        int callSites = 0;
+        final int[] worst = new int[TYPES.length];
+    }
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    /// instructions emitted for function; type is the command they belong
+    /// to, or null for code that is not the translation of a command
+    public void record(String function, CmdType type, int instructions) {
+        Entry entry = entry(function);
+        entry.instructions += instructions;
+        if (type != null) {
+            entry.commands++;
+            entry.worst[type.ordinal()] = Math.max(entry.worst[type.ordinal()], instructions);
+        }
+    }
+
+    public void recordCall(String callee) {
+        entry(callee).callSites++;
+    }
+
+    /// Add the entries of the profile of another part of the program
+    public void merge(FunctionProfile other) {
+        for (Map.Entry<String, Entry> e : other.entries.entrySet()) {
+            Entry entry = entry(e.getKey());
+            Entry from = e.getValue();
+            entry.instructions += from.instructions;
+            entry.commands += from.commands;
+            entry.callSites += from.callSites;
+            for (int t = 0; t < TYPES.length; t++) {
+                entry.worst[t] = Math.max(entry.worst[t], from.worst[t]);
+            }
+        }
+    }
+
+    private Entry entry(String function) {
+        Entry entry = entries.get(function);
+        if (entry == null) {
+            entry = new Entry();
+            entries.put(function, entry);
+        }
+        return entry;
+    }
+
+    /// entries ordered by size, largest first
+    private List<Map.Entry<String, Entry>> sorted() {
+        List<Map.Entry<String, Entry>> sorted = new ArrayList<>(entries.entrySet());
+        sorted.sort((a, b) -> Integer.compare(b.getValue().instructions, a.getValue().instructions));
+        return sorted;
+    }
+
+    private int total() {
+        int total = 0;
+        for (Entry entry : entries.values()) {
+            total += entry.instructions;
+        }
+        return total;
+    }
+
+    public void writeCsv(String path) throws IOException {
+        int total = total();
+        BufferedWriter out = new BufferedWriter(new FileWriter(path));
+        try {
+            out.write("function,instructions,rom_share,call_sites,commands");
+            for (CmdType type : TYPES) {
+                out.write(",worst_" + type.name().substring(1).toLowerCase());
+            }
+            out.write('\n');
+            for (Map.Entry<String, Entry> e : sorted()) {
+                Entry entry = e.getValue();
+                out.write(e.getKey() + "," + entry.instructions + "," + share(entry, total) + ","
+                        + entry.callSites + "," + entry.commands);
+                for (int worst : entry.worst) {
+                    out.write("," + worst);
+                }
+                out.write('\n');
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    public void writeJson(String path) throws IOException {
+        int total = total();
+        BufferedWriter out = new BufferedWriter(new FileWriter(path));
+        try {
+            out.write("{\n  \"total_instructions\": " + total + ",\n  \"functions\": [");
+            boolean first = true;
+            for (Map.Entry<String, Entry> e : sorted()) {
+                Entry entry = e.getValue();
+                out.write(first ? "\n" : ",\n");
+                first = false;
+                out.write("    {\"function\": \"" + e.getKey() + "\", \"instructions\": " + entry.instructions
+                        + ", \"rom_share\": " + share(entry, total) + ", \"call_sites\": " + entry.callSites
+                        + ", \"commands\": " + entry.commands + ", \"worst\": {");
+                for (int t = 0; t < TYPES.length; t++) {
+                    out.write((t == 0 ? "" : ", ") + "\"" + TYPES[t].name().substring(1).toLowerCase() + "\": "
+                            + entry.worst[t]);
+                }
+                out.write("}}");
+            }
+            out.write("\n  ]\n}\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String share(Entry entry, int total) {
+        return total == 0 ? "0" : String.format(Locale.ROOT, "%.4f", (double) entry.instructions / total);
+    }
+}
@@ -0,0 +1,210 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/// In-process Hack assembler for the code of a CodeWriter, so the translator
+/// can write .hack without the text round trip through the assembler of
+/// project 6. It follows that assembler: labels are resolved in a first
+/// pass, and symbols that are neither labels nor predefined become
+/// variables from RAM[16] on, in the order they are first used.
+///
+/// The first pass encodes every instruction into an int array; an
+/// A-instruction with a symbol is left for the second pass, which only
+/// walks the list of those symbols and patches their slots.
+public class HackAssembler {
+    public static final int ROM_SIZE = 32768;
+
+    private static final Map<String, Integer> PREDEFINED = new HashMap<>();
+    private static final Map<String, Integer> COMPS = new HashMap<>();
+    private static final String[] JUMPS = {"", "JGT", "JEQ", "JGE", "JLT", "JNE", "JLE", "JMP"};
+
+    static {
+        for (int i = 0; i < 16; i++) {
+            PREDEFINED.put("R" + i, i);
+        }
+        PREDEFINED.put("SCREEN", 16384);
+        PREDEFINED.put("KBD", 24576);
+        PREDEFINED.put("SP", 0);
+        PREDEFINED.put("LCL", 1);
+        PREDEFINED.put("ARG", 2);
+        PREDEFINED.put("THIS", 3);
+        PREDEFINED.put("THAT", 4);
+
+        // a and c bits of every computation; the M forms set the a bit
+        String[] comps = {
+            "0", "0101010", "1", "0111111", "-1", "0111010", "D", "0001100",
+            "A", "0110000", "M", "1110000", "!D", "0001101", "!A", "0110001",
+            "!M", "1110001", "-D", "0001111", "-A", "0110011", "-M", "1110011",
+            "D+1", "0011111", "A+1", "0110111", "M+1", "1110111", "D-1", "0001110",
+            "A-1", "0110010", "M-1", "1110010", "D+A", "0000010", "D+M", "1000010",
+            "D-A", "0010011", "D-M", "1010011", "A-D", "0000111", "M-D", "1000111",
+            "D&A", "0000000", "D&M", "1000000", "D|A", "0010101", "D|M", "1010101",
+        };
+        for (int i = 0; i < comps.length; i += 2) {
+            COMPS.put(comps[i], Integer.parseInt(comps[i + 1], 2));
+        }
+        // the translator also writes the commutative operations the other way round
+        String[] swapped = {"A+D", "D+A", "M+D", "D+M", "A&D", "D&A", "M&D", "D&M", "A|D", "D|A", "M|D", "D|M"};
+        for (int i = 0; i < swapped.length; i += 2) {
+            COMPS.put(swapped[i], COMPS.get(swapped[i + 1]));
+        }
+    }
+
+    private int[] instructions = new int[1024];
+    private int size = 0;
+    // slots of A-instructions with a symbol, and the symbols, in order
+    private int[] symbolSlots = new int[256];
+    private final List<String> symbols = new ArrayList<>();
+    private final Map<String, Integer> labels = new HashMap<>();
+    // encoding of every distinct C-instruction seen so far
+    private final Map<String, Integer> encoded = new HashMap<>();
+
+    /// Assemble code, one instruction or label per line, into ROM words
+    public int[] assemble(CharSequence code) throws IOException {
+        int start = 0;
+        int length = code.length();
+        for (int i = 0; i <= length; i++) {
+            if (i == length || code.charAt(i) == '\n') {
+                if (i > start) {
+                    firstPass(code.subSequence(start, i).toString().trim());
+                }
+                start = i + 1;
+            }
+        }
+        secondPass();
+        int[] program = new int[size];
+        System.arraycopy(instructions, 0, program, 0, size);
+        return program;
+    }
+
+    private void firstPass(String line) throws IOException {
+        if (line.isEmpty() || line.startsWith("//")) {
+            return;
+        }
+        if (line.charAt(0) == '(') {
+            String label = line.substring(1, line.indexOf(')'));
+            if (labels.putIfAbsent(label, size) != null) {
+                throw new IOException("Label defined more than once: " + label);
+            }
+            return;
+        }
+        if (size == instructions.length) {
+            int[] grown = new int[size * 2];
+            System.arraycopy(instructions, 0, grown, 0, size);
+            instructions = grown;
+        }
+        if (line.charAt(0) == '@') {
+            String value = line.substring(1);
+            if (Character.isDigit(value.charAt(0))) {
+                int address = Integer.parseInt(value);
+                if (address >= ROM_SIZE) {
+                    throw new IOException("Constant out of range: " + line);
+                }
+                instructions[size++] = address;
+            } else {
+                if (symbols.size() == symbolSlots.length) {
+                    int[] grown = new int[symbolSlots.length * 2];
+                    System.arraycopy(symbolSlots, 0, grown, 0, symbolSlots.length);
+                    symbolSlots = grown;
+                }
+                symbolSlots[symbols.size()] = size;
+                symbols.add(value);
+                instructions[size++] = 0;
+            }
+            return;
+        }
+        Integer instruction = encoded.get(line);
+        if (instruction == null) {
+            instruction = encode(line);
+            encoded.put(line, instruction);
+        }
+        instructions[size++] = instruction;
+    }
+
+    private void secondPass() throws IOException {
+        if (size > ROM_SIZE) {
+            throw new IOException("Program does not fit in ROM: " + size + " instructions");
+        }
+        Map<String, Integer> variables = new HashMap<>();
+        int nextVariable = 16;
+        for (int i = 0; i < symbols.size(); i++) {
+            String symbol = symbols.get(i);
+            Integer address = labels.get(symbol);
+            if (address == null) {
+                address = PREDEFINED.get(symbol);
+            }
+            if (address == null) {
+                address = variables.get(symbol);
+                if (address == null) {
+                    address = nextVariable++;
+                    variables.put(symbol, address);
+                }
+            }
+            instructions[symbolSlots[i]] = address;
+        }
+    }
+
+    /// dest=comp;jump as 111 a c1..c6 d1 d2 d3 j1 j2 j3
+    private static int encode(String line) throws IOException {
+        int equals = line.indexOf('=');
+        int semicolon = line.indexOf(';');
+        String dest = equals == -1 ? "" : line.substring(0, equals);
+        String comp = line.substring(equals + 1, semicolon == -1 ? line.length() : semicolon);
+        String jump = semicolon == -1 ? "" : line.substring(semicolon + 1);
+
+        Integer bits = COMPS.get(comp);
+        if (bits == null) {
+            throw new IOException("Invalid computation: " + line);
+        }
+        int destBits = (dest.indexOf('A') != -1 ? 4 : 0) | (dest.indexOf('D') != -1 ? 2 : 0)
+                | (dest.indexOf('M') != -1 ? 1 : 0);
+        int jumpBits = -1;
+        for (int j = 0; j < JUMPS.length; j++) {
+            if (JUMPS[j].equals(jump)) {
+                jumpBits = j;
+            }
+        }
+        if (jumpBits == -1) {
+            throw new IOException("Invalid jump: " + line);
+        }
+        return 0b111 << 13 | bits << 6 | destBits << 3 | jumpBits;
+    }
+
+    /// .hack text: one word per line as 16 binary digits
+    public static void writeHack(int[] program, String path) throws IOException {
+        StringBuilder text = new StringBuilder(program.length * 17);
+        for (int word : program) {
+            for (int bit = 15; bit >= 0; bit--) {
+                text.append((word >> bit & 1) == 0 ? '0' : '1');
+            }
+            text.append('\n');
+        }
+        AsmSink out = new AsmSink(path);
+        out.write(text);
+        out.close();
+    }
+
+    /// packed binary: two bytes per word, most significant first
+    public static void writePacked(int[] program, String path) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(program.length * 2);
+        for (int word : program) {
+            buffer.putShort((short) word);
+        }
+        buffer.flip();
+        FileChannel channel = FileChannel.open(Paths.get(path),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,327 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/// Inlines calls to small functions at the VM level. The body of the callee
+/// replaces the call, so the frame setup of call, function and return is
+/// gone. The arguments and the locals of the callee move into extra locals
+/// of the caller: the arguments are popped from the stack into them, the
+/// callee's locals are zeroed, and its labels are renamed per call site.
+/// A callee that sets pointer 0/1 gets the caller's value saved and
+/// restored around the inlined body, as its return would have done.
+///
+/// A function is inlined when its body has at most maxSize commands, it
+/// does not call itself, it cannot fall off its end and every return is
+/// reached with only the return value on its working stack. A callee that
+/// uses statics is only inlined into functions of its own file.
+public class Inliner {
+    private final int maxSize;
+    private int inlineCounter = 0;
+
+    // per callee symbol, filled for the functions that can be inlined
+    private boolean[] candidate;
+    private int[] starts;
+    private int[] ends;
+    private int[] files;
+    private int[] maxArgument;
+    private int[] pointerWrites;
+    private boolean[] usesStatic;
+
+    // report: callee name -> {call sites, instructions saved, estimated
+    // cycles saved per call}
+    private final Map<String, int[]> inlined = new LinkedHashMap<>();
+    private int prologueGrowth = 0;
+
+    public Inliner(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public VMProgram run(VMProgram program) {
+        findCandidates(program);
+
+        VMProgram result = program.emptyCopy();
+        for (int file = 0; file < program.fileCount(); file++) {
+            result.beginFile(program.fileName(file));
+            int fileEnd = program.fileEnd(file);
+            int i = program.fileStart(file);
+            while (i < fileEnd) {
+                if (program.op(i) != VMProgram.FUNCTION) {
+                    result.copy(program, i++);
+                    continue;
+                }
+                int caller = program.arg1(i);
+                int end = Math.min(program.functionEnd(i), fileEnd);
+
+                // every inlined call reuses the same extra locals
+                int extra = 0;
+                for (int j = i + 1; j < end; j++) {
+                    if (canInline(program, j, caller, file)) {
+                        extra = Math.max(extra, extraLocals(program, j));
+                    }
+                }
+                int base = program.arg2(i);
+                result.add(VMProgram.FUNCTION, caller, base + extra);
+                prologueGrowth += extra * CodeWriter.costOf(CmdType.CPush, "constant", 0);
+
+                for (int j = i + 1; j < end; j++) {
+                    if (canInline(program, j, caller, file)) {
+                        inline(program, j, base, result);
+                    } else {
+                        result.copy(program, j);
+                    }
+                }
+                i = end;
+            }
+        }
+        return result;
+    }
+
+    private void findCandidates(VMProgram program) {
+        int symbols = program.symbols().size();
+        candidate = new boolean[symbols];
+        starts = new int[symbols];
+        ends = new int[symbols];
+        files = new int[symbols];
+        maxArgument = new int[symbols];
+        pointerWrites = new int[symbols];
+        usesStatic = new boolean[symbols];
+        for (int file = 0; file < program.fileCount(); file++) {
+            for (int i = program.fileStart(file); i < program.fileEnd(file); i++) {
+                if (program.op(i) != VMProgram.FUNCTION) {
+                    continue;
+                }
+                int function = program.arg1(i);
+                int end = Math.min(program.functionEnd(i), program.fileEnd(file));
+                starts[function] = i;
+                ends[function] = end;
+                files[function] = file;
+                candidate[function] = isInlinable(program, i, end);
+            }
+        }
+    }
+
+    private boolean isInlinable(VMProgram program, int start, int end) {
+        int function = program.arg1(start);
+        int last = program.op(end - 1);
+        if (end - start - 1 > maxSize || end - start < 2 || (last != VMProgram.RETURN && last != VMProgram.GOTO)) {
+            return false;
+        }
+        maxArgument[function] = -1;
+        for (int i = start + 1; i < end; i++) {
+            int op = program.op(i);
+            if (op == VMProgram.CALL && program.arg1(i) == function) {
+                return false;
+            }
+            if (op == VMProgram.PUSH || op == VMProgram.POP) {
+                int segment = program.arg1(i);
+                if (segment == VMProgram.ARGUMENT) {
+                    maxArgument[function] = Math.max(maxArgument[function], program.arg2(i));
+                } else if (segment == VMProgram.STATIC) {
+                    usesStatic[function] = true;
+                } else if (segment == VMProgram.POINTER && op == VMProgram.POP) {
+                    pointerWrites[function] |= 1 << program.arg2(i);
+                }
+            }
+        }
+        return hasBalancedReturns(program, start, end);
+    }
+
+    /// Stack depth analysis of the body: the depth at every label must be the
+    /// same on all paths, it may never drop below zero and must be exactly
+    /// one (the return value) at every return.
+    private boolean hasBalancedReturns(VMProgram program, int start, int end) {
+        int[] labelDepth = new int[program.symbols().size()];
+        Arrays.fill(labelDepth, -1);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            int depth = 0;
+            boolean reachable = true;
+            for (int i = start + 1; i < end; i++) {
+                int op = program.op(i);
+                if (op == VMProgram.LABEL) {
+                    int label = program.arg1(i);
+                    if (reachable) {
+                        if (labelDepth[label] == -1) {
+                            labelDepth[label] = depth;
+                            changed = true;
+                        } else if (labelDepth[label] != depth) {
+                            return false;
+                        }
+                    } else if (labelDepth[label] != -1) {
+                        depth = labelDepth[label];
+                        reachable = true;
+                    }
+                    continue;
+                }
+                if (!reachable) {
+                    continue;
+                }
+                switch (op) {
+                    case VMProgram.PUSH:
+                        depth++;
+                        break;
+                    case VMProgram.POP:
+                    case VMProgram.ADD:
+                    case VMProgram.SUB:
+                    case VMProgram.EQ:
+                    case VMProgram.GT:
+                    case VMProgram.LT:
+                    case VMProgram.AND:
+                    case VMProgram.OR:
+                        depth--;
+                        break;
+                    case VMProgram.NEG:
+                    case VMProgram.NOT:
+                        break;
+                    case VMProgram.CALL:
+                        depth -= program.arg2(i);
+                        if (depth < 0) {
+                            return false;
+                        }
+                        depth++;
+                        break;
+                    case VMProgram.GOTO:
+                    case VMProgram.IF_GOTO: {
+                        if (op == VMProgram.IF_GOTO) {
+                            depth--;
+                        }
+                        int label = program.arg1(i);
+                        if (labelDepth[label] == -1) {
+                            labelDepth[label] = depth;
+                            changed = true;
+                        } else if (labelDepth[label] != depth) {
+                            return false;
+                        }
+                        reachable = op == VMProgram.IF_GOTO;
+                        break;
+                    }
+                    case VMProgram.RETURN:
+                        if (depth != 1) {
+                            return false;
+                        }
+                        reachable = false;
+                        break;
+                    default:
+                        return false;
+                }
+                if (depth < 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean canInline(VMProgram program, int i, int caller, int callerFile) {
+        if (program.op(i) != VMProgram.CALL) {
+            return false;
+        }
+        int callee = program.arg1(i);
+        return callee < candidate.length && candidate[callee] && callee != caller
+                && (!usesStatic[callee] || files[callee] == callerFile)
+                && maxArgument[callee] < program.arg2(i);
+    }
+
+    private int extraLocals(VMProgram program, int i) {
+        int callee = program.arg1(i);
+        // pointer p is saved in slot p after the callee's arguments and locals
+        int savedPointers = 32 - Integer.numberOfLeadingZeros(pointerWrites[callee]);
+        return program.arg2(i) + program.arg2(starts[callee]) + savedPointers;
+    }
+
+    /// Replace the call at i by the callee's body, using the caller's locals
+    /// from base on for the callee's arguments, locals and saved pointers.
+    private void inline(VMProgram program, int i, int base, VMProgram result) {
+        SymbolPool symbols = program.symbols();
+        int callee = program.arg1(i);
+        int nArgs = program.arg2(i);
+        int nLocals = program.arg2(starts[callee]);
+        String prefix = "INLINE" + (inlineCounter++) + "$";
+        int from = result.size();
+
+        // arguments come off the stack, the last one on top
+        for (int a = nArgs - 1; a >= 0; a--) {
+            result.add(VMProgram.POP, VMProgram.LOCAL, base + a);
+        }
+        for (int l = 0; l < nLocals; l++) {
+            result.add(VMProgram.PUSH, VMProgram.CONSTANT, 0);
+            result.add(VMProgram.POP, VMProgram.LOCAL, base + nArgs + l);
+        }
+        int saveSlot = base + nArgs + nLocals;
+        for (int p = 0; p < 2; p++) {
+            if ((pointerWrites[callee] & (1 << p)) != 0) {
+                result.add(VMProgram.PUSH, VMProgram.POINTER, p);
+                result.add(VMProgram.POP, VMProgram.LOCAL, saveSlot + p);
+            }
+        }
+
+        int endLabel = symbols.intern(prefix + "END");
+        int bodyEnd = ends[callee];
+        for (int j = starts[callee] + 1; j < bodyEnd; j++) {
+            int op = program.op(j);
+            int segment = program.arg1(j);
+            if ((op == VMProgram.PUSH || op == VMProgram.POP) && segment == VMProgram.ARGUMENT) {
+                result.add(op, VMProgram.LOCAL, base + program.arg2(j));
+            } else if ((op == VMProgram.PUSH || op == VMProgram.POP) && segment == VMProgram.LOCAL) {
+                result.add(op, VMProgram.LOCAL, base + nArgs + program.arg2(j));
+            } else if (op == VMProgram.LABEL || op == VMProgram.GOTO || op == VMProgram.IF_GOTO) {
+                result.add(op, symbols.intern(prefix + symbols.name(segment)), 0);
+            } else if (op == VMProgram.RETURN) {
+                if (j != bodyEnd - 1) {
+                    result.add(VMProgram.GOTO, endLabel, 0);
+                }
+            } else {
+                result.copy(program, j);
+            }
+        }
+        result.add(VMProgram.LABEL, endLabel, 0);
+        for (int p = 0; p < 2; p++) {
+            if ((pointerWrites[callee] & (1 << p)) != 0) {
+                result.add(VMProgram.PUSH, VMProgram.LOCAL, saveSlot + p);
+                result.add(VMProgram.POP, VMProgram.POINTER, p);
+            }
+        }
+
+        // statistics, in Hack instructions of the standard translation; the
+        // cycles saved per call are estimated as the instructions of the
+        // call and the callee's body minus those of the inlined code, as if
+        // each ran straight through once, so loops and branches are not
+        // accounted for
+        int inlineCost = cost(result, from, result.size());
+        int callCost = cost(program, i, i + 1);
+        int calleeCost = cost(program, starts[callee], bodyEnd);
+        int[] stats = inlined.computeIfAbsent(symbols.name(callee), name -> new int[3]);
+        stats[0]++;
+        stats[1] += callCost - inlineCost;
+        stats[2] = callCost + calleeCost - inlineCost;
+    }
+
+    private static int cost(VMProgram program, int from, int to) {
+        int cost = 0;
+        for (int i = from; i < to; i++) {
+            cost += CodeWriter.costOf(VMProgram.cmdType(program.op(i)), program.arg1Name(i), program.arg2(i));
+        }
+        return cost;
+    }
+
+    /// every inlined function with its call sites and savings; the cycles
+    /// per call are a static estimate, not a measurement
+    public String getReport() {
+        StringBuilder sb = new StringBuilder();
+        int sites = 0;
+        int saved = 0;
+        for (int[] stats : inlined.values()) {
+            sites += stats[0];
+            saved += stats[1];
+        }
+        sb.append(String.format("inlining: %d call sites of %d functions, %d instructions saved at call sites, %d added to prologues\n",
+                sites, inlined.size(), saved, prologueGrowth));
+        for (Map.Entry<String, int[]> entry : inlined.entrySet()) {
+            int[] stats = entry.getValue();
+            sb.append(String.format("  %-28s %4d sites %6d instructions %5d est. cycles per call\n",
+                    entry.getKey(), stats[0], stats[1], stats[2]));
+        }
+        return sb.toString();
+    }
+}
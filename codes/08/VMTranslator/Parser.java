@@ -1,49 +1,140 @@
-import java.util.HashMap;
-import java.util.Map;
-
 public class Parser {
-    private static final Map<String, CmdType> COMMAND_TABLE = new HashMap<>();
-    static {
-        COMMAND_TABLE.put("push", CmdType.CPush);
-        COMMAND_TABLE.put("pop", CmdType.CPop);
-        COMMAND_TABLE.put("add", CmdType.CArithmetic);
-        COMMAND_TABLE.put("sub", CmdType.CArithmetic);
-        COMMAND_TABLE.put("neg", CmdType.CArithmetic);
-        COMMAND_TABLE.put("eq", CmdType.CArithmetic);
-        COMMAND_TABLE.put("lt", CmdType.CArithmetic);
-        COMMAND_TABLE.put("and", CmdType.CArithmetic);
-        COMMAND_TABLE.put("or", CmdType.CArithmetic);
-        COMMAND_TABLE.put("not", CmdType.CArithmetic);
-        COMMAND_TABLE.put("label", CmdType.CLabel);
-        COMMAND_TABLE.put("goto", CmdType.CGoto);
-        COMMAND_TABLE.put("function", CmdType.CFunction);
-        COMMAND_TABLE.put("if-goto", CmdType.CIf);
-        COMMAND_TABLE.put("call", CmdType.CCall);
-        COMMAND_TABLE.put("return", CmdType.CReturn);
-    }
+    /// Parses the command in line[start, end) into cmd without allocating:
+    /// the characters are scanned in place, comments and surrounding
+    /// whitespace are skipped. Returns false if there is no command.
+    public static boolean parseCommand(CharSequence line, int start, int end, VMCommand cmd) {
+        for (int i = start; i + 1 < end; i++) {
+            if (line.charAt(i) == '/' && line.charAt(i + 1) == '/') {
+                end = i;
+                break;
+            }
+        }
+        int pos = skipSpaces(line, start, end);
+        if (pos == end) {
+            return false;
+        }
+        int wordEnd = skipWord(line, pos, end);
+        decodeCommand(line, pos, wordEnd, cmd);
+        cmd.source = line;
 
-    public static CommandDetails parseCommand(String command) {
-        String[] cmdElements = command.split("\\s+");
+        // first argument
+        pos = skipSpaces(line, wordEnd, end);
+        wordEnd = skipWord(line, pos, end);
+        cmd.arg1Start = pos;
+        cmd.arg1End = wordEnd;
+        if (cmd.cmdType == CmdType.CPush || cmd.cmdType == CmdType.CPop) {
+            cmd.op = decodeSegment(line, pos, wordEnd);
+        }
 
-        CmdType cmdType = COMMAND_TABLE.getOrDefault(cmdElements[0], CmdType.CArithmetic);
+        // second argument
+        pos = skipSpaces(line, wordEnd, end);
+        wordEnd = skipWord(line, pos, end);
+        cmd.arg2 = 0;
+        for (int i = pos; i < wordEnd; i++) {
+            char c = line.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new IllegalArgumentException("Invalid argument: " + line.subSequence(pos, wordEnd));
+            }
+            cmd.arg2 = cmd.arg2 * 10 + (c - '0');
+        }
+        return true;
+    }
 
-        String arg1 = null;
-        Integer arg2 = null;
+    private static int skipSpaces(CharSequence line, int pos, int end) {
+        while (pos < end && Character.isWhitespace(line.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
 
-        if (cmdType == CmdType.CArithmetic) {
-            arg1 = cmdElements[0];
-        } else if (cmdElements.length > 1) {
-            arg1 = cmdElements[1];
+    private static int skipWord(CharSequence line, int pos, int end) {
+        while (pos < end && !Character.isWhitespace(line.charAt(pos))) {
+            pos++;
         }
+        return pos;
+    }
+
+    private static boolean regionEquals(CharSequence line, int start, int end, String word) {
+        if (end - start != word.length()) {
+            return false;
+        }
+        for (int i = 0; i < word.length(); i++) {
+            if (line.charAt(start + i) != word.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        if (cmdElements.length == 3) {
-            try {
-                arg2 = Integer.parseInt(cmdElements[2]);
-            } catch (NumberFormatException e) {
-                arg2 = null;
+    /// command keyword, decoded on its first character and then compared
+    private static void decodeCommand(CharSequence line, int start, int end, VMCommand cmd) {
+        cmd.op = -1;
+        switch (line.charAt(start)) {
+            case 'p':
+                if (regionEquals(line, start, end, "push")) {
+                    cmd.cmdType = CmdType.CPush;
+                    return;
+                }
+                if (regionEquals(line, start, end, "pop")) {
+                    cmd.cmdType = CmdType.CPop;
+                    return;
+                }
+                break;
+            case 'l':
+                if (regionEquals(line, start, end, "label")) {
+                    cmd.cmdType = CmdType.CLabel;
+                    return;
+                }
+                break;
+            case 'g':
+                if (regionEquals(line, start, end, "goto")) {
+                    cmd.cmdType = CmdType.CGoto;
+                    return;
+                }
+                break;
+            case 'i':
+                if (regionEquals(line, start, end, "if-goto")) {
+                    cmd.cmdType = CmdType.CIf;
+                    return;
+                }
+                break;
+            case 'f':
+                if (regionEquals(line, start, end, "function")) {
+                    cmd.cmdType = CmdType.CFunction;
+                    return;
+                }
+                break;
+            case 'c':
+                if (regionEquals(line, start, end, "call")) {
+                    cmd.cmdType = CmdType.CCall;
+                    return;
+                }
+                break;
+            case 'r':
+                if (regionEquals(line, start, end, "return")) {
+                    cmd.cmdType = CmdType.CReturn;
+                    return;
+                }
+                break;
+            default:
+                break;
+        }
+        for (int i = 0; i < VMCommand.ARITHMETIC.length; i++) {
+            if (regionEquals(line, start, end, VMCommand.ARITHMETIC[i])) {
+                cmd.cmdType = CmdType.CArithmetic;
+                cmd.op = i;
+                return;
             }
         }
+        throw new IllegalArgumentException("Unknown VM command: " + line.subSequence(start, end));
+    }
 
-        return new CommandDetails(cmdType, arg1, arg2);
+    private static int decodeSegment(CharSequence line, int start, int end) {
+        for (int i = 0; i < VMCommand.SEGMENTS.length; i++) {
+            if (regionEquals(line, start, end, VMCommand.SEGMENTS[i])) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Invalid segment: " + line.subSequence(start, end));
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,190 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/// Peephole optimizer over the generated Hack assembly. It works on the
+/// instruction list of a CodeWriter (one instruction or label per entry)
+/// and rewrites the redundant sequences left behind by the templates.
+///
+/// Every rule relies on the templates not expecting anything in A or D
+/// at the start of a VM command, and on the stack cell at RAM[SP] being
+/// dead. With top-of-stack caching D can carry a value from one command
+/// to the next; no rule drops or changes a write to D that is still read.
+/// Labels are never part of a pattern, so no rule matches across a
+/// jump target.
+public class Peephole {
+    /// A rewrite looks at the instructions starting at index i. On a match it
+    /// appends the replacement to out and returns how many instructions it
+    /// consumed, otherwise it returns 0.
+    private interface Rewrite {
+        int apply(List<String> code, int i, List<String> out);
+    }
+
+    private static class Rule {
+        final String name;
+        final Rewrite rewrite;
+        int hits = 0;
+
+        Rule(String name, Rewrite rewrite) {
+            this.name = name;
+            this.rewrite = rewrite;
+        }
+    }
+
+    private final List<Rule> rules = new ArrayList<>();
+    private int sizeBefore = 0;
+    private int sizeAfter = 0;
+
+    public Peephole() {
+        // push immediately followed by a pop: SP goes up and down again
+        rules.add(new Rule("push-pop", (code, i, out) -> {
+            if (!matches(code, i, "@SP", "M=M+1", "@SP", "AM=M-1")) {
+                return 0;
+            }
+            add(out, "@SP", "A=M");
+            return 4;
+        }));
+        // value stored on top of the stack and loaded back into D, with A
+        // overwritten right after: nothing needs the stack at all
+        rules.add(new Rule("store-load-dead", (code, i, out) -> {
+            if (!matches(code, i, "@SP", "A=M", "M=D", "@SP", "A=M", "D=M") || !isAInstruction(code, i + 6)) {
+                return 0;
+            }
+            return 6;
+        }));
+        // value stored on top of the stack and loaded back into D
+        rules.add(new Rule("store-load", (code, i, out) -> {
+            if (!matches(code, i, "@SP", "A=M", "M=D", "@SP", "A=M", "D=M")) {
+                return 0;
+            }
+            add(out, "@SP", "A=M", "M=D");
+            return 6;
+        }));
+        // neg computed as 0 - x
+        rules.add(new Rule("neg", (code, i, out) -> {
+            if (!matches(code, i, "D=0", "@SP", "A=M-1", "M=D-M")) {
+                return 0;
+            }
+            add(out, "@SP", "A=M-1", "M=-M");
+            return 4;
+        }));
+        // push of D: increment SP first and store through the new address
+        rules.add(new Rule("push-increment", (code, i, out) -> {
+            if (!matches(code, i, "@SP", "A=M", "M=D", "@SP", "M=M+1")) {
+                return 0;
+            }
+            add(out, "@SP", "AM=M+1", "A=A-1", "M=D");
+            return 5;
+        }));
+        // computation into A only, overwritten by the next A-instruction
+        rules.add(new Rule("dead-a", (code, i, out) -> {
+            String instruction = code.get(i);
+            if (!instruction.startsWith("A=") || instruction.indexOf(';') != -1 || !isAInstruction(code, i + 1)) {
+                return 0;
+            }
+            return 1;
+        }));
+        // two A-instructions in a row, the first one is never used
+        rules.add(new Rule("double-load", (code, i, out) -> {
+            if (!isAInstruction(code, i) || !isAInstruction(code, i + 1)) {
+                return 0;
+            }
+            return 1;
+        }));
+        // unconditional jump to the very next instruction
+        rules.add(new Rule("jump-to-next", (code, i, out) -> {
+            if (!isAInstruction(code, i) || !matches(code, i + 1, "0;JMP")
+                    || !matches(code, i + 2, "(" + code.get(i).substring(1) + ")")) {
+                return 0;
+            }
+            return 2;
+        }));
+        // code after an unconditional jump, up to the next label
+        rules.add(new Rule("unreachable", (code, i, out) -> {
+            if (!matches(code, i, "0;JMP")) {
+                return 0;
+            }
+            int end = i + 1;
+            while (end < code.size() && !isLabel(code, end)) {
+                end++;
+            }
+            if (end == i + 1) {
+                return 0;
+            }
+            out.add(code.get(i));
+            return end - i;
+        }));
+    }
+
+    /// Apply every rule in table order until none of them matches any more.
+    public List<String> optimize(List<String> code) {
+        sizeBefore += countInstructions(code);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Rule rule : rules) {
+                List<String> out = new ArrayList<>(code.size());
+                int i = 0;
+                while (i < code.size()) {
+                    int consumed = rule.rewrite.apply(code, i, out);
+                    if (consumed > 0) {
+                        rule.hits++;
+                        changed = true;
+                        i += consumed;
+                    } else {
+                        out.add(code.get(i));
+                        i++;
+                    }
+                }
+                code = out;
+            }
+        }
+        sizeAfter += countInstructions(code);
+        return code;
+    }
+
+    /// instruction counts before and after, and the hits of every rule
+    public String getReport() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("peephole: %d -> %d instructions\n", sizeBefore, sizeAfter));
+        for (Rule rule : rules) {
+            sb.append(String.format("  %-16s %d\n", rule.name, rule.hits));
+        }
+        return sb.toString();
+    }
+
+    private static boolean matches(List<String> code, int i, String... pattern) {
+        if (i + pattern.length > code.size()) {
+            return false;
+        }
+        for (int k = 0; k < pattern.length; k++) {
+            if (!code.get(i + k).equals(pattern[k])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isAInstruction(List<String> code, int i) {
+        return i < code.size() && code.get(i).startsWith("@");
+    }
+
+    private static boolean isLabel(List<String> code, int i) {
+        return i < code.size() && code.get(i).startsWith("(");
+    }
+
+    private static void add(List<String> out, String... instructions) {
+        for (String instruction : instructions) {
+            out.add(instruction);
+        }
+    }
+
+    private static int countInstructions(List<String> code) {
+        int count = 0;
+        for (String instruction : code) {
+            if (!instruction.startsWith("(")) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
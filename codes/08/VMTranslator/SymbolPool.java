@@ -0,0 +1,89 @@
+/// Interned label and function names of a VMProgram. Every distinct name
+/// gets a small int id; looking a name up from a range of characters does
+/// not allocate unless the name is new. A pool is filled by one thread;
+/// once built it can be read from several.
+public class SymbolPool {
+    private String[] names = new String[64];
+    private int size = 0;
+    // open addressing table of id + 1, 0 marks an empty slot
+    private int[] table = new int[128];
+
+    public int intern(CharSequence text, int start, int end) {
+        int hash = hash(text, start, end);
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        while (table[slot] != 0) {
+            String name = names[table[slot] - 1];
+            if (equals(name, text, start, end)) {
+                return table[slot] - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (size == names.length) {
+            names = java.util.Arrays.copyOf(names, size * 2);
+        }
+        names[size] = text.subSequence(start, end).toString();
+        table[slot] = ++size;
+        if (size * 2 > table.length) {
+            rehash();
+        }
+        return size - 1;
+    }
+
+    /// id of a name, or -1 if it was never interned
+    public int find(String name) {
+        int mask = table.length - 1;
+        int slot = hash(name, 0, name.length()) & mask;
+        while (table[slot] != 0) {
+            if (names[table[slot] - 1].equals(name)) {
+                return table[slot] - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    public int intern(String name) {
+        return intern(name, 0, name.length());
+    }
+
+    public String name(int id) {
+        return names[id];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void rehash() {
+        table = new int[table.length * 2];
+        int mask = table.length - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = hash(names[id], 0, names[id].length()) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = id + 1;
+        }
+    }
+
+    private static int hash(CharSequence text, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + text.charAt(i);
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean equals(String name, CharSequence text, int start, int end) {
+        if (name.length() != end - start) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) != text.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
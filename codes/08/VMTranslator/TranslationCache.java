@@ -0,0 +1,98 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/// On-disk cache of translated files. The code of one .vm file only depends
+/// on its name, its content, the translator version and the code generation
+/// options, as long as no whole-program pass runs; all of them together are
+/// hashed into the key. An entry holds the buffered code of the file's
+/// CodeWriter with its statistics, and can be appended after the bootstrap
+/// like a freshly translated part, since its labels are file-relative.
+public class TranslationCache {
+    private final File directory;
+    private final String settings;
+    private int hits = 0;
+    private int misses = 0;
+
+    /// settings describes everything besides the file that changes the code
+    public TranslationCache(File directory, String settings) {
+        this.directory = directory;
+        this.settings = settings;
+    }
+
+    /// key of a .vm file: SHA-256 of the settings, its name and its bytes
+    public String key(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        digest.update(settings.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(file.getName().getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(Files.readAllBytes(file.toPath()));
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    /// the cached part for a key, or null when there is none
+    public CodeWriter load(CodeWriter codeWriter, String key) throws IOException {
+        File entry = new File(directory, key + ".asm");
+        if (!entry.isFile()) {
+            synchronized (this) {
+                misses++;
+            }
+            return null;
+        }
+        BufferedReader reader = new BufferedReader(new FileReader(entry));
+        try {
+            CodeWriter part = codeWriter.readPart(reader);
+            synchronized (this) {
+                hits++;
+            }
+            return part;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /// Store a translated part. It is written to a temporary file first and
+    /// moved into place, so a concurrent or interrupted build never sees
+    /// half an entry.
+    public void store(CodeWriter part, String key) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create cache directory " + directory);
+        }
+        File temp = File.createTempFile(key, ".tmp", directory);
+        BufferedWriter writer = new BufferedWriter(new FileWriter(temp));
+        try {
+            part.writePart(writer);
+        } finally {
+            writer.close();
+        }
+        Files.move(temp.toPath(), new File(directory, key + ".asm").toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /// number of files taken from the cache in this run
+    public int getHits() {
+        return hits;
+    }
+
+    public String getReport() {
+        return String.format("cache: %d files reused, %d translated\n", hits, misses);
+    }
+}
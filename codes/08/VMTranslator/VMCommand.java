@@ -0,0 +1,16 @@
+/// A parsed VM command that is reused from one line to the next.
+/// Segment and arithmetic names are decoded to ids; labels and function
+/// names are kept as a range of the source line, which VMProgram interns.
+public class VMCommand {
+    public static final String[] ARITHMETIC = {"add", "sub", "neg", "eq", "gt", "lt", "and", "or", "not"};
+    public static final String[] SEGMENTS = {"argument", "local", "static", "constant", "this", "that", "pointer", "temp"};
+
+    public CmdType cmdType;
+    /// arithmetic id for CArithmetic, segment id for CPush and CPop
+    public int op;
+    public CharSequence source;
+    public int arg1Start;
+    public int arg1End;
+    /// second argument, 0 when the command has none
+    public int arg2;
+}
@@ -0,0 +1,38 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+/// Reads a whole .vm file into one String, so the parser can work on
+/// offsets into it instead of a String per line. VM files are ASCII and
+/// are decoded as Latin-1, which is a plain copy of the bytes.
+///
+/// Large files are memory mapped and copied out of the mapping in bulk;
+/// small ones are read with a single call, because mapping and unmapping
+/// costs more than the copy for the few KB of a typical class. Parsing
+/// through the mapped buffer directly, a byte at a time, measured slower
+/// than parsing the String.
+public class VMFileReader {
+    // files of at least this many bytes are memory mapped
+    private static final long MAP_THRESHOLD = 1 << 20;
+
+    public static String read(File file) throws IOException {
+        byte[] bytes;
+        if (file.length() < MAP_THRESHOLD) {
+            bytes = Files.readAllBytes(file.toPath());
+        } else {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                bytes = new byte[mapped.remaining()];
+                mapped.get(bytes);
+            } finally {
+                channel.close();
+            }
+        }
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,238 @@
+import java.util.Arrays;
+
+/// Compact intermediate representation of a VM program: one entry per
+/// command, stored as parallel arrays of opcode, first and second argument.
+/// The first argument is a segment id for push/pop and a SymbolPool id for
+/// label, goto, if-goto, function and call. The second argument is the
+/// index, number of locals or number of arguments. The program also keeps
+/// where each input file starts, so code can be generated per file.
+public class VMProgram {
+    // opcodes, the arithmetic ones in the order of VMCommand.ARITHMETIC
+    public static final int PUSH = 0;
+    public static final int POP = 1;
+    public static final int ADD = 2;
+    public static final int SUB = 3;
+    public static final int NEG = 4;
+    public static final int EQ = 5;
+    public static final int GT = 6;
+    public static final int LT = 7;
+    public static final int AND = 8;
+    public static final int OR = 9;
+    public static final int NOT = 10;
+    public static final int LABEL = 11;
+    public static final int GOTO = 12;
+    public static final int IF_GOTO = 13;
+    public static final int FUNCTION = 14;
+    public static final int CALL = 15;
+    public static final int RETURN = 16;
+
+    // segment ids, in the order of VMCommand.SEGMENTS
+    public static final int ARGUMENT = 0;
+    public static final int LOCAL = 1;
+    public static final int STATIC = 2;
+    public static final int CONSTANT = 3;
+    public static final int THIS = 4;
+    public static final int THAT = 5;
+    public static final int POINTER = 6;
+    public static final int TEMP = 7;
+
+    private static final CmdType[] CMD_TYPES = {
+        CmdType.CPush, CmdType.CPop,
+        CmdType.CArithmetic, CmdType.CArithmetic, CmdType.CArithmetic, CmdType.CArithmetic, CmdType.CArithmetic,
+        CmdType.CArithmetic, CmdType.CArithmetic, CmdType.CArithmetic, CmdType.CArithmetic,
+        CmdType.CLabel, CmdType.CGoto, CmdType.CIf, CmdType.CFunction, CmdType.CCall, CmdType.CReturn
+    };
+
+    private final SymbolPool symbols;
+    private byte[] ops = new byte[256];
+    private int[] arg1 = new int[256];
+    private int[] arg2 = new int[256];
+    private int size = 0;
+
+    private String[] fileNames = new String[8];
+    private int[] fileStarts = new int[8];
+    private int fileCount = 0;
+
+    public VMProgram() {
+        this(new SymbolPool());
+    }
+
+    public VMProgram(SymbolPool symbols) {
+        this.symbols = symbols;
+    }
+
+    public SymbolPool symbols() {
+        return symbols;
+    }
+
+    /// Commands added from now on belong to the given input file
+    public void beginFile(String fileName) {
+        if (fileCount == fileNames.length) {
+            fileNames = Arrays.copyOf(fileNames, fileCount * 2);
+            fileStarts = Arrays.copyOf(fileStarts, fileCount * 2);
+        }
+        fileNames[fileCount] = fileName;
+        fileStarts[fileCount] = size;
+        fileCount++;
+    }
+
+    public void add(int op, int first, int second) {
+        if (size == ops.length) {
+            ops = Arrays.copyOf(ops, size * 2);
+            arg1 = Arrays.copyOf(arg1, size * 2);
+            arg2 = Arrays.copyOf(arg2, size * 2);
+        }
+        ops[size] = (byte) op;
+        arg1[size] = first;
+        arg2[size] = second;
+        size++;
+    }
+
+    /// Add a command from the parser, interning its label or function name
+    public void add(VMCommand cmd) {
+        switch (cmd.cmdType) {
+            case CPush:
+                add(PUSH, cmd.op, cmd.arg2);
+                break;
+            case CPop:
+                add(POP, cmd.op, cmd.arg2);
+                break;
+            case CArithmetic:
+                add(ADD + cmd.op, 0, 0);
+                break;
+            case CLabel:
+                add(LABEL, symbols.intern(cmd.source, cmd.arg1Start, cmd.arg1End), 0);
+                break;
+            case CGoto:
+                add(GOTO, symbols.intern(cmd.source, cmd.arg1Start, cmd.arg1End), 0);
+                break;
+            case CIf:
+                add(IF_GOTO, symbols.intern(cmd.source, cmd.arg1Start, cmd.arg1End), 0);
+                break;
+            case CFunction:
+                add(FUNCTION, symbols.intern(cmd.source, cmd.arg1Start, cmd.arg1End), cmd.arg2);
+                break;
+            case CCall:
+                add(CALL, symbols.intern(cmd.source, cmd.arg1Start, cmd.arg1End), cmd.arg2);
+                break;
+            case CReturn:
+                add(RETURN, 0, 0);
+                break;
+            default:
+                throw new UnsupportedOperationException("Command type not supported.");
+        }
+    }
+
+    /// Drop the commands from index size on, used by passes that rewrite
+    /// the commands they have just added
+    public void truncate(int size) {
+        this.size = size;
+    }
+
+    /// Copy command i of another program that shares this program's pool
+    public void copy(VMProgram from, int i) {
+        add(from.ops[i], from.arg1[i], from.arg2[i]);
+    }
+
+    /// An empty program on the same pool, used by passes to build their result
+    public VMProgram emptyCopy() {
+        return new VMProgram(symbols);
+    }
+
+    /// Append all files of another program, moving its names into this pool
+    public void append(VMProgram other) {
+        int[] remap = new int[other.symbols.size()];
+        for (int id = 0; id < remap.length; id++) {
+            remap[id] = symbols.intern(other.symbols.name(id));
+        }
+        int fileIndex = 0;
+        for (int i = 0; i < other.size; i++) {
+            while (fileIndex < other.fileCount && other.fileStarts[fileIndex] == i) {
+                beginFile(other.fileNames[fileIndex++]);
+            }
+            int op = other.ops[i];
+            add(op, hasSymbol(op) ? remap[other.arg1[i]] : other.arg1[i], other.arg2[i]);
+        }
+        while (fileIndex < other.fileCount) {
+            beginFile(other.fileNames[fileIndex++]);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int op(int i) {
+        return ops[i];
+    }
+
+    public int arg1(int i) {
+        return arg1[i];
+    }
+
+    public int arg2(int i) {
+        return arg2[i];
+    }
+
+    public int fileCount() {
+        return fileCount;
+    }
+
+    public String fileName(int file) {
+        return fileNames[file];
+    }
+
+    public int fileStart(int file) {
+        return fileStarts[file];
+    }
+
+    public int fileEnd(int file) {
+        return file + 1 < fileCount ? fileStarts[file + 1] : size;
+    }
+
+    /// index of the command that ends the function starting at i: the next
+    /// function command or the end of the program
+    public int functionEnd(int i) {
+        int end = i + 1;
+        while (end < size && ops[end] != FUNCTION) {
+            end++;
+        }
+        return end;
+    }
+
+    /// for every symbol id, the index of the function command defining it, or -1
+    public int[] functionStarts() {
+        int[] starts = new int[symbols.size()];
+        Arrays.fill(starts, -1);
+        for (int i = 0; i < size; i++) {
+            if (ops[i] == FUNCTION) {
+                starts[arg1[i]] = i;
+            }
+        }
+        return starts;
+    }
+
+    /// whether the first argument of an opcode is a SymbolPool id
+    public static boolean hasSymbol(int op) {
+        return op >= LABEL && op <= CALL;
+    }
+
+    public static CmdType cmdType(int op) {
+        return CMD_TYPES[op];
+    }
+
+    /// first argument as the String the CodeWriter expects
+    public String arg1Name(int i) {
+        int op = ops[i];
+        if (op == PUSH || op == POP) {
+            return VMCommand.SEGMENTS[arg1[i]];
+        }
+        if (op >= ADD && op <= NOT) {
+            return VMCommand.ARITHMETIC[op - ADD];
+        }
+        if (hasSymbol(op)) {
+            return symbols.name(arg1[i]);
+        }
+        return null;
+    }
+}
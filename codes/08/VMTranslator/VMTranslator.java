@@ -1,13 +1,102 @@
 import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class VMTranslator {
+    // part of the cache key, change it whenever the generated code changes
+    private static final String VERSION = "8.13";
+
+    // translation options, set from the command line
+    private static boolean sharedCalls = false;
+    private static boolean tosCaching = false;
+    private static boolean sharedCompares = false;
+    private static boolean fuseBranches = false;
+    private static boolean elideFrames = false;
+    private static boolean tailCalls = false;
+    // weight of a cycle against an instruction in function prologues, or
+    // negative for the standard prologue
+    private static double prologueWeight = -1;
+    // "asm", or "hack" / "packed" to assemble in process; keepAsm writes
+    // the .asm next to the binary
+    private static String emit = "asm";
+    private static boolean keepAsm = false;
+    private static Peephole peephole = null;
+    private static DeadFunctionElimination deadFunctions = null;
+    private static Inliner inliner = null;
+    private static ConstantFolding folding = null;
+    private static boolean inline = false;
+    private static int inlineSize = 12;
+    private static int threads = Runtime.getRuntime().availableProcessors();
+    private static File cacheDirectory = null;
+    private static TranslationCache cache = null;
+    // why the cache was not used in this run, or null when it was
+    private static String cacheBypass = null;
+    // format of the per-function profile written next to the .asm, or null
+    private static String profileFormat = null;
+    private static FunctionProfile profile = null;
+
     public static void main(String[] args) {
-        if (args.length == 0) {
-            System.err.println("Usage: java VMTranslator <vm_file>");
+        String file = null;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--threads") && i + 1 < args.length) {
+                threads = Math.max(1, Integer.parseInt(args[++i]));
+            } else if (arg.equals("--cache") && i + 1 < args.length) {
+                cacheDirectory = new File(args[++i]);
+            } else if (arg.equals("--profile") && i + 1 < args.length
+                    && (args[i + 1].equals("csv") || args[i + 1].equals("json"))) {
+                profileFormat = args[++i];
+            } else if (arg.equals("--shared-calls")) {
+                sharedCalls = true;
+            } else if (arg.equals("--shared-compare")) {
+                sharedCompares = true;
+            } else if (arg.equals("--fuse-branches")) {
+                fuseBranches = true;
+            } else if (arg.equals("--elide-frames")) {
+                elideFrames = true;
+            } else if (arg.equals("--tail-calls")) {
+                tailCalls = true;
+            } else if (arg.equals("--prologue") && i + 1 < args.length) {
+                prologueWeight = prologueWeight(args[++i]);
+            } else if (arg.equals("--emit") && i + 1 < args.length
+                    && (args[i + 1].equals("asm") || args[i + 1].equals("hack") || args[i + 1].equals("packed"))) {
+                emit = args[++i];
+            } else if (arg.equals("--keep-asm")) {
+                keepAsm = true;
+            } else if (arg.equals("--cache-tos")) {
+                tosCaching = true;
+            } else if (arg.equals("--inline-size") && i + 1 < args.length) {
+                inlineSize = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--inline")) {
+                inline = true;
+            } else if (arg.equals("--fold")) {
+                folding = new ConstantFolding();
+            } else if (arg.equals("--strip-dead")) {
+                deadFunctions = new DeadFunctionElimination();
+            } else if (arg.equals("--peephole")) {
+                peephole = new Peephole();
+            } else if (arg.startsWith("--")) {
+                System.err.println("Unknown option: " + arg);
+                System.exit(1);
+            } else {
+                file = arg;
+            }
+        }
+        if (file == null) {
+            System.err.println("Usage: java VMTranslator [--shared-calls] [--shared-compare] [--fuse-branches] [--elide-frames] [--tail-calls] [--prologue size|speed|weight] [--cache-tos] [--peephole] [--strip-dead] [--fold] [--inline] [--inline-size n] [--emit asm|hack|packed] [--keep-asm] [--threads n] [--cache dir] [--profile csv|json] <vm_file | directory>");
             System.exit(1);
         }
 
-        String file = args[0];
+        if (inline) {
+            inliner = new Inliner(inlineSize);
+        }
+        if (cacheDirectory != null) {
+            cache = new TranslationCache(cacheDirectory, settings());
+        }
 
         // extension is .vm
         if (file.endsWith(".vm")) {
@@ -37,18 +126,19 @@ public class VMTranslator {
     }
     
     private static void translateFile(String inputFilePath, String outputFilePath) throws IOException {
+        cacheBypass = "single files are not cached";
         File inputFile = new File(inputFilePath);
-        BufferedReader reader = new BufferedReader(new FileReader(inputFile));
-        CodeWriter codeWriter = new CodeWriter(outputFilePath);
+        VMProgram program = optimize(parseFile(inputFile));
 
-        // parse the file
+        CodeWriter codeWriter = createCodeWriter(outputFilePath);
+        if (elideFrames) {
+            codeWriter.setFrameElision(new FrameElision(program));
+        }
         codeWriter.setFileName(inputFile.getName());
-        parseFile(reader, codeWriter);
-
-
-        // close the reader and writer
-        reader.close();
+        codeWriter.writeProgram(program, 0, program.size());
         codeWriter.close();
+        writeProfile(outputFilePath);
+        printReports(codeWriter);
     }
 
     private static void translateDirectory(String inputDirectory, String outputFilePath) throws IOException {
@@ -59,37 +149,261 @@ public class VMTranslator {
             System.exit(1);
         }
     
-        // Initialize CodeWriter
-        CodeWriter codeWriter = new CodeWriter(outputFilePath);
-        codeWriter.writeInit();
-    
-        // Parse each VM file except Sys.vm
+        // translate the files in a fixed order, so the output does not
+        // depend on the order the file system lists them in
+        List<File> vmFiles = new ArrayList<>();
         for (File f : files) {
             if (f.isFile() && f.getName().endsWith(".vm")) {
-                BufferedReader reader = new BufferedReader(new FileReader(f));
-                codeWriter.setFileName(f.getName());
-                parseFile(reader, codeWriter);
+                vmFiles.add(f);
             }
         }
-        codeWriter.close();
+        vmFiles.sort((a, b) -> a.getName().compareTo(b.getName()));
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, vmFiles.size())));
+        try {
+            String wholeProgram = wholeProgramOptions();
+            if (cache != null && wholeProgram.isEmpty()) {
+                // without whole-program passes every file is translated on
+                // its own, so unchanged files come straight from the cache;
+                // cached parts carry no profile, so profiling bypasses it,
+                // frame elision makes call sites depend on their callee and
+                // the converted tail calls are not kept with the code
+                CodeWriter codeWriter = createCodeWriter(outputFilePath);
+                codeWriter.writeInit();
+                List<Future<CodeWriter>> parts = new ArrayList<>();
+                for (File f : vmFiles) {
+                    parts.add(pool.submit(() -> translateCached(codeWriter, f)));
+                }
+                for (Future<CodeWriter> part : parts) {
+                    codeWriter.append(await(part));
+                }
+                codeWriter.close();
+                writeProfile(outputFilePath);
+                printReports(codeWriter);
+                return;
+            }
+
+            cacheBypass = wholeProgram + " need the whole program";
+
+            // Every file is parsed into its own IR on the worker pool, then
+            // the files are linked into one program in file order
+            List<Future<VMProgram>> parsed = new ArrayList<>();
+            for (File f : vmFiles) {
+                parsed.add(pool.submit(() -> parseFile(f)));
+            }
+            VMProgram linked = new VMProgram();
+            for (Future<VMProgram> part : parsed) {
+                linked.append(await(part));
+            }
+            VMProgram program = optimize(linked);
+
+            // Initialize CodeWriter
+            CodeWriter codeWriter = createCodeWriter(outputFilePath);
+            if (elideFrames) {
+                codeWriter.setFrameElision(new FrameElision(program));
+            }
+            codeWriter.writeInit();
+
+            // Code for every file is generated into its own buffer, then the
+            // buffers are appended in file order after the bootstrap
+            List<Future<CodeWriter>> parts = new ArrayList<>();
+            for (int file = 0; file < program.fileCount(); file++) {
+                int index = file;
+                parts.add(pool.submit(() -> translatePart(codeWriter, program, index)));
+            }
+            for (Future<CodeWriter> part : parts) {
+                codeWriter.append(await(part));
+            }
+            codeWriter.close();
+            writeProfile(outputFilePath);
+            printReports(codeWriter);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /// the options set that keep files from being translated on their own
+    private static String wholeProgramOptions() {
+        List<String> options = new ArrayList<>();
+        if (inliner != null) {
+            options.add("--inline");
+        }
+        if (deadFunctions != null) {
+            options.add("--strip-dead");
+        }
+        if (profileFormat != null) {
+            options.add("--profile");
+        }
+        if (elideFrames) {
+            options.add("--elide-frames");
+        }
+        if (tailCalls) {
+            options.add("--tail-calls");
+        }
+        return String.join(" ", options);
+    }
+
+    /// whole-program passes over the linked IR
+    private static VMProgram optimize(VMProgram program) {
+        if (inliner != null) {
+            program = inliner.run(program);
+        }
+        if (folding != null) {
+            program = folding.run(program);
+        }
+        if (deadFunctions != null) {
+            program = deadFunctions.run(program);
+        }
+        return program;
+    }
+
+    private static CodeWriter translatePart(CodeWriter codeWriter, VMProgram program, int file) throws IOException {
+        CodeWriter part = codeWriter.forFile(program.fileName(file));
+        part.writeProgram(program, program.fileStart(file), program.fileEnd(file));
+        return part;
+    }
+
+    /// the part of one file from the cache, translated and stored on a miss
+    private static CodeWriter translateCached(CodeWriter codeWriter, File file) throws IOException {
+        String key = cache.key(file);
+        CodeWriter part = cache.load(codeWriter, key);
+        if (part == null) {
+            VMProgram program = optimize(parseFile(file));
+            part = translatePart(codeWriter, program, 0);
+            cache.store(part, key);
+        }
+        return part;
+    }
+
+    /// the translator version and every option that changes the generated code
+    private static String settings() {
+        return String.format("%s shared-calls=%b cache-tos=%b shared-compare=%b fuse-branches=%b fold=%b prologue=%s",
+                VERSION, sharedCalls, tosCaching, sharedCompares, fuseBranches, folding != null, prologueWeight);
+    }
+
+    /// result of a task on the worker pool, with its failure as an IOException
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Translation interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static CodeWriter createCodeWriter(String outputFilePath) throws IOException {
+        CodeWriter codeWriter = new CodeWriter(outputFilePath);
+        codeWriter.setSharedCalls(sharedCalls);
+        codeWriter.setTosCaching(tosCaching);
+        codeWriter.setSharedCompares(sharedCompares);
+        codeWriter.setFuseBranches(fuseBranches);
+        codeWriter.setTailCalls(tailCalls);
+        codeWriter.setPrologueWeight(prologueWeight);
+        if (profileFormat != null) {
+            profile = new FunctionProfile();
+            codeWriter.setProfile(profile);
+        }
+        codeWriter.setPeephole(peephole);
+        if (!emit.equals("asm")) {
+            String basePath = outputFilePath.substring(0, outputFilePath.length() - ".asm".length());
+            codeWriter.setHackOutput(basePath + (emit.equals("hack") ? ".hack" : ".bin"), emit.equals("packed"), keepAsm);
+        }
+        return codeWriter;
+    }
+
+    /// the per-function profile, next to the .asm as name.csv or name.json
+    private static void writeProfile(String outputFilePath) throws IOException {
+        if (profile == null) {
+            return;
+        }
+        String base = outputFilePath.substring(0, outputFilePath.length() - ".asm".length());
+        if (profileFormat.equals("csv")) {
+            profile.writeCsv(base + ".csv");
+        } else {
+            profile.writeJson(base + ".json");
+        }
+    }
+
+    private static void printReports(CodeWriter codeWriter) {
+        boolean cached = cache != null && cacheBypass == null;
+        if (cache != null) {
+            System.out.print(cached ? cache.getReport() : "cache: bypassed, " + cacheBypass + "\n");
+        }
+        if (inliner != null) {
+            System.out.print(inliner.getReport());
+        }
+        if (folding != null) {
+            String report = folding.getReport();
+            if (cached && cache.getHits() > 0) {
+                // files reused from the cache were folded in an earlier run
+                report = report.substring(0, report.length() - 1)
+                        + String.format(", not counting %d files reused from the cache\n", cache.getHits());
+            }
+            System.out.print(report);
+        }
+        if (deadFunctions != null) {
+            System.out.print(deadFunctions.getReport());
+        }
+        if (sharedCalls) {
+            System.out.print(codeWriter.getCallReport());
+        }
+        if (prologueWeight >= 0) {
+            System.out.print(codeWriter.getPrologueReport());
+        }
+        if (tailCalls) {
+            System.out.print(codeWriter.getTailCallReport());
+        }
+        if (elideFrames) {
+            System.out.print(codeWriter.getFrameReport());
+        }
+        if (fuseBranches) {
+            System.out.print(codeWriter.getBranchReport());
+        }
+        if (sharedCompares) {
+            System.out.print(codeWriter.getCompareReport());
+        }
+        if (peephole != null) {
+            System.out.print(peephole.getReport());
+        }
     }
     
 
-    private static void parseFile(BufferedReader reader, CodeWriter codeWriter) throws IOException {
-        String line;
-        while ((line = reader.readLine()) != null) {
-            // remove leading and trailing whitespaces
-            line = line.trim();
-            int index = line.indexOf("//");
-            if (index != -1) {
-                line = line.substring(0, index);
+    /// "size" only counts instructions, "speed" makes every cycle outweigh
+    /// any difference in size; anything else is the weight itself
+    private static double prologueWeight(String policy) {
+        if (policy.equals("size")) {
+            return 0;
+        }
+        if (policy.equals("speed")) {
+            return 1000;
+        }
+        return Double.parseDouble(policy);
+    }
+
+    /// Parse a .vm file into its own IR program. The file is read into one
+    /// String and every line is parsed in place, by its offsets.
+    static VMProgram parseFile(File file) throws IOException {
+        VMProgram program = new VMProgram();
+        program.beginFile(file.getName());
+        VMCommand command = new VMCommand();
+        String text = VMFileReader.read(file);
+        int start = 0;
+        while (start < text.length()) {
+            int end = text.indexOf('\n', start);
+            if (end == -1) {
+                end = text.length();
             }
-            if (line.isEmpty()) {
-                continue;
+            // comments, blank lines and the \r of \r\n are skipped by the parser
+            if (Parser.parseCommand(text, start, end, command)) {
+                program.add(command);
             }
-            // parse the command
-            CommandDetails commandDetails = Parser.parseCommand(line);
-            codeWriter.writeAssembly(commandDetails.cmdType, commandDetails.arg1, commandDetails.arg2);
+            start = end + 1;
         }
+        return program;
     }
 }
@@ -0,0 +1,84 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/// Parse-only benchmark: the String.split based SplitParser.parseCommand
+/// against the in-place Parser.parseCommand(CharSequence, ..., VMCommand).
+/// Usage: java ParserBench <.vm file or directory>...
+public class ParserBench {
+    // lines are repeated until there are at least this many
+    private static final int MIN_LINES = 200_000;
+
+    public static void main(String[] args) throws Exception {
+        List<String> lines = new ArrayList<>();
+        for (String arg : args) {
+            collect(new File(arg), lines);
+        }
+        if (lines.isEmpty()) {
+            System.err.println("Usage: java ParserBench <vm_file | directory>...");
+            System.exit(1);
+        }
+        int original = lines.size();
+        for (int i = 0; lines.size() < MIN_LINES; i++) {
+            lines.add(lines.get(i % original));
+        }
+        String[] input = lines.toArray(new String[0]);
+        int commands = countCommands(input);
+
+        BenchHarness.measure("parse split (String per line)", commands, () -> {
+            long sum = 0;
+            for (String line : input) {
+                // what parseFile did before handing the line to the parser
+                line = line.trim();
+                int index = line.indexOf("//");
+                if (index != -1) {
+                    line = line.substring(0, index);
+                }
+                if (line.isEmpty()) {
+                    continue;
+                }
+                CommandDetails details = SplitParser.parseCommand(line);
+                sum += details.cmdType.ordinal() + (details.arg2 == null ? 0 : details.arg2);
+            }
+            return sum;
+        });
+
+        VMCommand command = new VMCommand();
+        BenchHarness.measure("parse in place (reused VMCommand)", commands, () -> {
+            long sum = 0;
+            for (String line : input) {
+                if (Parser.parseCommand(line, 0, line.length(), command)) {
+                    sum += command.cmdType.ordinal() + command.arg2;
+                }
+            }
+            return sum;
+        });
+    }
+
+    private static int countCommands(String[] input) {
+        VMCommand command = new VMCommand();
+        int count = 0;
+        for (String line : input) {
+            if (Parser.parseCommand(line, 0, line.length(), command)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    static void collect(File file, List<String> lines) throws IOException {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                java.util.Arrays.sort(children);
+                for (File child : children) {
+                    collect(child, lines);
+                }
+            }
+        } else if (file.getName().endsWith(".vm")) {
+            lines.addAll(Files.readAllLines(file.toPath()));
+        }
+    }
+}
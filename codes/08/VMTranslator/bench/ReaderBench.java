@@ -0,0 +1,80 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/// Read-and-parse benchmark over whole .vm files: BufferedReader.readLine
+/// with a String per line against reading each file into one String with
+/// VMFileReader and parsing it in place.
+/// Usage: java ReaderBench <.vm file or directory>...
+public class ReaderBench {
+    public static void main(String[] args) throws Exception {
+        List<File> files = new ArrayList<>();
+        for (String arg : args) {
+            collect(new File(arg), files);
+        }
+        if (files.isEmpty()) {
+            System.err.println("Usage: java ReaderBench <vm_file | directory>...");
+            System.exit(1);
+        }
+        long bytes = 0;
+        for (File file : files) {
+            bytes += file.length();
+        }
+        System.out.printf("%d files, %d bytes; one op is one byte of input%n", files.size(), bytes);
+
+        VMCommand command = new VMCommand();
+        BenchHarness.measure("read lines + parse", bytes, () -> {
+            long sum = 0;
+            for (File file : files) {
+                BufferedReader reader = new BufferedReader(new FileReader(file));
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (Parser.parseCommand(line, 0, line.length(), command)) {
+                            sum += command.cmdType.ordinal() + command.arg2;
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            }
+            return sum;
+        });
+
+        BenchHarness.measure("whole file + parse in place", bytes, () -> {
+            long sum = 0;
+            for (File file : files) {
+                String text = VMFileReader.read(file);
+                int start = 0;
+                while (start < text.length()) {
+                    int end = text.indexOf('\n', start);
+                    if (end == -1) {
+                        end = text.length();
+                    }
+                    if (Parser.parseCommand(text, start, end, command)) {
+                        sum += command.cmdType.ordinal() + command.arg2;
+                    }
+                    start = end + 1;
+                }
+            }
+            return sum;
+        });
+    }
+
+    private static void collect(File file, List<File> files) throws IOException {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                java.util.Arrays.sort(children);
+                for (File child : children) {
+                    collect(child, files);
+                }
+            }
+        } else if (file.getName().endsWith(".vm")) {
+            files.add(file);
+        }
+    }
+}
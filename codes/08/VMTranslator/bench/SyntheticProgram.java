@@ -0,0 +1,98 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Random;
+
+/// Generator of large VM programs for the benchmarks. The output looks like
+/// compiled Jack: classes of functions that push and pop every segment, do
+/// arithmetic and comparisons, branch on labels and call each other, plus
+/// a Sys.init that calls into them. A fixed seed gives the same program on
+/// every run.
+public class SyntheticProgram {
+    private static final String[] SEGMENTS = {"argument", "local", "static", "this", "that", "temp"};
+    private static final String[] ARITHMETIC = {"add", "sub", "neg", "eq", "gt", "lt", "and", "or", "not"};
+
+    private final Random random = new Random(42);
+    private final int classes;
+    private final int functions;
+    private final int commands;
+
+    /// a program of the given number of classes, functions per class and
+    /// commands per function
+    public SyntheticProgram(int classes, int functions, int commands) {
+        this.classes = classes;
+        this.functions = functions;
+        this.commands = commands;
+    }
+
+    /// Write one .vm file per class and Sys.vm into directory
+    public void writeTo(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        for (int c = 0; c < classes; c++) {
+            Writer out = new FileWriter(new File(directory, "Class" + c + ".vm"));
+            try {
+                for (int f = 0; f < functions; f++) {
+                    writeFunction(out, c, f);
+                }
+            } finally {
+                out.close();
+            }
+        }
+        Writer out = new FileWriter(new File(directory, "Sys.vm"));
+        try {
+            out.write("function Sys.init 0\n");
+            for (int c = 0; c < classes; c++) {
+                out.write("call Class" + c + ".f0 0\npop temp 0\n");
+            }
+            out.write("label END\ngoto END\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeFunction(Writer out, int c, int f) throws IOException {
+        out.write("function Class" + c + ".f" + f + " 4\n");
+        int depth = 0;
+        int labels = 0;
+        for (int i = 0; i < commands; i++) {
+            int kind = random.nextInt(10);
+            if (depth == 0 || kind < 4) {
+                if (random.nextBoolean()) {
+                    out.write("push constant " + random.nextInt(1000) + "\n");
+                } else {
+                    out.write("push " + segment() + " " + random.nextInt(4) + "\n");
+                }
+                depth++;
+            } else if (kind < 6) {
+                out.write("pop " + segment() + " " + random.nextInt(4) + "\n");
+                depth--;
+            } else if (kind < 8 && depth >= 2) {
+                String command = ARITHMETIC[random.nextInt(ARITHMETIC.length)];
+                out.write(command + "\n");
+                if (!command.equals("neg") && !command.equals("not")) {
+                    depth--;
+                }
+            } else if (kind == 8) {
+                // conditions are taken with an empty working stack, as in Jack
+                while (depth > 1) {
+                    out.write("pop temp 0\n");
+                    depth--;
+                }
+                out.write("if-goto L" + labels + "\nlabel L" + labels + "\n");
+                labels++;
+                depth = 0;
+            } else if (f + 1 < functions) {
+                out.write("call Class" + c + ".f" + (f + 1) + " " + Math.min(depth, 2) + "\n");
+                depth -= Math.min(depth, 2) - 1;
+            }
+        }
+        out.write("push constant 0\nreturn\n");
+    }
+
+    private String segment() {
+        return SEGMENTS[random.nextInt(SEGMENTS.length)];
+    }
+}
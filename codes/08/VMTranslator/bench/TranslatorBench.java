@@ -0,0 +1,150 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/// Parse-only, codegen-only and end-to-end benchmarks of the translator.
+/// Every argument is a .vm file or a directory that is searched for
+/// programs (directories holding .vm files); --synthetic n adds a generated
+/// program of n classes. One operation is one VM command of the input.
+/// Small programs are repeated within a round so a round is long enough to
+/// time. End-to-end runs work on a copy of the inputs, so the .asm files
+/// next to the test programs are never overwritten; their B/op only counts
+/// the calling thread, as directories are parsed and translated on the
+/// translator's worker pool.
+/// Usage: java TranslatorBench [--synthetic n] <vm_file | directory>...
+public class TranslatorBench {
+    // commands per round at least, for parse/codegen and for end-to-end
+    private static final int MIN_COMMANDS = 100_000;
+    private static final int MIN_COMMANDS_END_TO_END = 20_000;
+
+    public static void main(String[] args) throws Exception {
+        File work = Files.createTempDirectory("vmbench").toFile();
+        List<File> programs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--synthetic") && i + 1 < args.length) {
+                File synthetic = new File(work, "synthetic");
+                new SyntheticProgram(Integer.parseInt(args[++i]), 20, 60).writeTo(synthetic);
+                programs.add(synthetic);
+            } else {
+                collect(new File(args[i]), programs);
+            }
+        }
+        if (programs.isEmpty()) {
+            System.err.println("Usage: java TranslatorBench [--synthetic n] <vm_file | directory>...");
+            System.exit(1);
+        }
+
+        for (File program : programs) {
+            List<File> files = vmFiles(program);
+            List<VMProgram> parsed = new ArrayList<>();
+            int commands = 0;
+            for (File file : files) {
+                VMProgram part = VMTranslator.parseFile(file);
+                parsed.add(part);
+                commands += part.size();
+            }
+            File copy = copy(program, work);
+            File output = new File(work, "codegen.asm");
+            String name = program.getName();
+            int repeat = Math.max(1, MIN_COMMANDS / Math.max(1, commands));
+            int repeatEndToEnd = Math.max(1, MIN_COMMANDS_END_TO_END / Math.max(1, commands));
+
+            BenchHarness.measure(name + " parse", (long) commands * repeat, () -> {
+                long sum = 0;
+                for (int r = 0; r < repeat; r++) {
+                    for (File file : files) {
+                        sum += VMTranslator.parseFile(file).size();
+                    }
+                }
+                return sum;
+            });
+
+            CodeWriter root = new CodeWriter(output.getPath());
+            BenchHarness.measure(name + " codegen", (long) commands * repeat, () -> {
+                long sum = 0;
+                for (int r = 0; r < repeat; r++) {
+                    for (VMProgram part : parsed) {
+                        CodeWriter writer = root.forFile(part.fileName(0));
+                        writer.writeProgram(part, 0, part.size());
+                        sum += part.size();
+                    }
+                }
+                return sum;
+            });
+            root.close();
+
+            String[] translatorArgs = {"--threads", "1", copy.getPath()};
+            BenchHarness.measure(name + " end-to-end", (long) commands * repeatEndToEnd, () -> {
+                PrintStream out = System.out;
+                System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+                try {
+                    for (int r = 0; r < repeatEndToEnd; r++) {
+                        VMTranslator.main(translatorArgs);
+                    }
+                } finally {
+                    System.setOut(out);
+                }
+                return repeatEndToEnd;
+            });
+        }
+    }
+
+    /// directories with .vm files directly in them, and single .vm files
+    private static void collect(File file, List<File> programs) {
+        if (file.isFile()) {
+            if (file.getName().endsWith(".vm")) {
+                programs.add(file);
+            }
+            return;
+        }
+        File[] children = file.listFiles();
+        if (children == null) {
+            return;
+        }
+        java.util.Arrays.sort(children);
+        if (!vmFiles(file).isEmpty()) {
+            programs.add(file);
+        }
+        for (File child : children) {
+            if (child.isDirectory()) {
+                collect(child, programs);
+            }
+        }
+    }
+
+    private static List<File> vmFiles(File program) {
+        List<File> files = new ArrayList<>();
+        if (program.isFile()) {
+            files.add(program);
+            return files;
+        }
+        File[] children = program.listFiles();
+        if (children != null) {
+            java.util.Arrays.sort(children);
+            for (File child : children) {
+                if (child.isFile() && child.getName().endsWith(".vm")) {
+                    files.add(child);
+                }
+            }
+        }
+        return files;
+    }
+
+    /// copy of a program's .vm files in the work directory, what the
+    /// end-to-end benchmark translates
+    private static File copy(File program, File work) throws IOException {
+        File target = new File(new File(work, "e2e" + work.list().length), program.getName());
+        if (!target.mkdirs()) {
+            throw new IOException("Cannot create " + target);
+        }
+        for (File file : vmFiles(program)) {
+            Files.copy(file.toPath(), new File(target, file.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return program.isFile() ? new File(target, program.getName()) : target;
+    }
+}
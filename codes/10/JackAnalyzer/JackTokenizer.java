@@ -1,119 +1,193 @@
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
+/// Streaming lexer: the file is read once as bytes and a token is only cut
+/// out of it when the compilation engine advances to it. Whitespace,
+/// `//`, `/* */` and `/** */` comments and string literals are handled
+/// while scanning, so lexing is linear in the size of the file.
+///
+/// A token is classified once, when it is scanned: its kind, keyword id,
+/// symbol character and integer value go into parallel arrays with one
+/// slot for the current token and one for the token after it, so the
+/// accessors only read a field.
 public class JackTokenizer {
-    ArrayList<String> tokens = new ArrayList<String>();
-    int currentIndex = 0;
-
-    public static final Set<String> KEYWORDS = new HashSet<>(Arrays.asList(
+    private static final String SYMBOLS = "{}()[].,;+-*/&|<>=~";
+    // one shared String per symbol character
+    private static final String[] SYMBOL_TOKENS = new String[128];
+
+    // token kinds, in the order of TYPE_NAMES
+    public static final int KEYWORD = 0;
+    public static final int SYMBOL = 1;
+    public static final int IDENTIFIER = 2;
+    public static final int INT_CONST = 3;
+    public static final int STRING_CONST = 4;
+    public static final int UNKNOWN = 5;
+    private static final String[] TYPE_NAMES = {
+        "keyword", "symbol", "identifier", "integerConstant", "stringConstant", "unknown"
+    };
+
+    private static final String[] KEYWORD_NAMES = {
         "class", "constructor", "function", "method", "field", "static", "var",
         "int", "char", "boolean", "void", "true", "false", "null", "this",
         "let", "do", "if", "else", "while", "return"
-    ));
+    };
+    // keyword ids used by type() and routineType()
+    private static final int INT = 7;
+    private static final int CHAR = 8;
+    private static final int BOOLEAN = 9;
+    private static final int VOID = 10;
+    private static final Map<String, Integer> KEYWORD_IDS = new HashMap<>();
+
+    public static final Set<String> KEYWORDS = new HashSet<>(Arrays.asList(KEYWORD_NAMES));
+
+    static {
+        for (char c : SYMBOLS.toCharArray()) {
+            SYMBOL_TOKENS[c] = Character.toString(c);
+        }
+        for (int i = 0; i < KEYWORD_NAMES.length; i++) {
+            KEYWORD_IDS.put(KEYWORD_NAMES[i], i);
+        }
+    }
+
+    private final byte[] source;
+    // next byte to scan
+    private int position = 0;
+
+    // the current token and the one after it, as two slots of parallel
+    // arrays; the text is null past the end of the file
+    private final String[] texts = new String[2];
+    private final int[] kinds = new int[2];
+    private final int[] keywords = new int[2];
+    private final char[] symbols = new char[2];
+    private final int[] intValues = new int[2];
+    private int current = 0;
+    // whether the other slot holds the next token already
+    private boolean lookahead = false;
 
     /// Constructor
     public JackTokenizer(String inputFile) throws IOException {
-        BufferedReader reader = new BufferedReader(new FileReader(inputFile));
-        String line;
-        String total_line = "";
-
-        while ((line = reader.readLine()) != null) {
-            // filter out comments and empty lines
-            line = line.trim();
-
-            // remove inline comments
-            line = line.indexOf("//") == -1 ? line : line.substring(0, line.indexOf("//"));
-            if (line.isEmpty()) {
-                continue;
-            }
-            total_line += line;
-        }
-        reader.close();
-
-        // remove block comments
-        String uncommentedCode = total_line.replaceAll("/\\*\\*.*?\\*/", "");
-
-        // Manually split into tokens
-        boolean inString = false;
-        StringBuilder currentToken = new StringBuilder();
-        for (char c : uncommentedCode.toCharArray()) {
-            if (c == '"' && !inString) {
-                inString = true;
-                currentToken.append(c);
-            } else if (c == '"' && inString) {
-                currentToken.append(c);
-                tokens.add(currentToken.toString());
-                currentToken = new StringBuilder();
-                inString = false;
-            } else if (inString) {
-                currentToken.append(c);
-            } else if (!inString && "{}()[].,;+-*/|<>=~".indexOf(c) != -1) {
-                if (currentToken.length() > 0) {
-                    tokens.add(currentToken.toString());
-                    currentToken = new StringBuilder();
+        source = Files.readAllBytes(Paths.get(inputFile));
+        scan(current);
+    }
+
+    /// Cut the next token out of the source and classify it into slot; its
+    /// text is null at the end of the source. String constants keep their
+    /// double quotes.
+    private void scan(int slot) {
+        int length = source.length;
+        while (position < length) {
+            byte c = source[position];
+            if (c <= ' ' && c >= 0) {
+                position++;
+            } else if (c == '/' && position + 1 < length && source[position + 1] == '/') {
+                while (position < length && source[position] != '\n') {
+                    position++;
                 }
-                tokens.add(Character.toString(c));
-            } else if (!inString && Character.isWhitespace(c)) {
-                if (currentToken.length() > 0) {
-                    tokens.add(currentToken.toString());
-                    currentToken = new StringBuilder();
+            } else if (c == '/' && position + 1 < length && source[position + 1] == '*') {
+                position += 2;
+                while (position + 1 < length && !(source[position] == '*' && source[position + 1] == '/')) {
+                    position++;
                 }
+                position += 2;
+            } else {
+                break;
+            }
+        }
+        if (position >= length) {
+            texts[slot] = null;
+            kinds[slot] = UNKNOWN;
+            return;
+        }
+        int start = position;
+        byte c = source[position];
+        if (c == '"') {
+            position++;
+            while (position < length && source[position] != '"' && source[position] != '\n') {
+                position++;
+            }
+            boolean closed = position < length && source[position] == '"';
+            position = Math.min(position + 1, length);
+            texts[slot] = new String(source, start, position - start, StandardCharsets.ISO_8859_1);
+            kinds[slot] = closed ? STRING_CONST : UNKNOWN;
+            return;
+        }
+        if (c > 0 && SYMBOL_TOKENS[c] != null) {
+            position++;
+            texts[slot] = SYMBOL_TOKENS[c];
+            kinds[slot] = SYMBOL;
+            symbols[slot] = (char) c;
+            return;
+        }
+
+        // a word: an integer constant if it only has digits, an identifier
+        // if it only has letters, digits and _ and does not start with a digit
+        boolean digits = true;
+        boolean word = true;
+        int value = 0;
+        while (position < length) {
+            c = source[position];
+            if ((c <= ' ' && c >= 0) || c == '"' || (c > 0 && SYMBOL_TOKENS[c] != null)) {
+                break;
+            }
+            if (c >= '0' && c <= '9') {
+                value = Math.min(value * 10 + (c - '0'), 32768);
             } else {
-                currentToken.append(c);
+                digits = false;
+                word &= (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
             }
+            position++;
+        }
+        String text = new String(source, start, position - start, StandardCharsets.ISO_8859_1);
+        if (digits) {
+            texts[slot] = text;
+            kinds[slot] = value <= 32767 ? INT_CONST : UNKNOWN;
+            intValues[slot] = value;
+            return;
         }
-        if (currentToken.length() > 0) {
-            tokens.add(currentToken.toString().trim());
+        Integer keyword = KEYWORD_IDS.get(text);
+        if (keyword != null) {
+            texts[slot] = KEYWORD_NAMES[keyword];
+            kinds[slot] = KEYWORD;
+            keywords[slot] = keyword;
+            return;
         }
+        texts[slot] = text;
+        kinds[slot] = word && !(source[start] >= '0' && source[start] <= '9') ? IDENTIFIER : UNKNOWN;
     }
-    
+
     /// Are there more tokens in the input?
     public boolean hasMoreTokens() {
-        return currentIndex < tokens.size();
+        return texts[current] != null;
     }
 
     /// Gets the next token from the input and makes it the current token.
     public void advance() {
         if (hasMoreTokens()) {
-            currentIndex++;
+            if (lookahead) {
+                current = 1 - current;
+                lookahead = false;
+            } else {
+                scan(current);
+            }
         }
     }
 
     /// Returns the type of the current token.
     public String tokenType() {
-        String token = tokens.get(currentIndex);
-        if (token.matches("\\d+")) {
-            int value = Integer.parseInt(token);
-            if (value >= 0 && value <= 32767) {
-                return "integerConstant";
-            }
-        }
-        if (token.matches("^\"[^\"]*\"$")) {
-            return "stringConstant";
-        }
-        if ("{}()[].,;+-*/&|<>=~".contains(token)) {
-            return "symbol";
-        }
-        if (KEYWORDS.contains(token)) {
-            return "keyword";
-        }
-        if (token.matches("^[a-zA-Z_]\\w*$")) {
-            return "identifier";
-        }
-        
-        return "unknown";
+        return TYPE_NAMES[kinds[current]];
     }
 
     /// Returns the keyword which is the current token.
     public String keyWord() {
-        String currentType = tokenType();
-        if (currentType == "keyword") {
-            return stringVal();
+        if (kinds[current] == KEYWORD) {
+            return KEYWORD_NAMES[keywords[current]];
         } else {
             throw new IllegalArgumentException("Current token is not a keyword: " + stringVal());
         }
@@ -121,28 +195,34 @@ public class JackTokenizer {
 
     /// Returns the identifier which is the current token.
     public String identifier() {
-        String currentType = tokenType();
-        if (currentType == "identifier") {
+        if (kinds[current] == IDENTIFIER) {
             return stringVal();
         } else {
             throw new IllegalArgumentException("Current token is not a identifier: " + stringVal());
         }
     }
 
-    /// Returns the symbol which is the current token 
+    /// Returns the symbol which is the current token
     public String symbol() {
-        String currentType = tokenType();
-        if (currentType == "symbol") {
-            return stringVal();
+        if (kinds[current] == SYMBOL) {
+            return SYMBOL_TOKENS[symbols[current]];
         } else {
             throw new IllegalArgumentException("Current token is not a symbol: " + stringVal());
         }
     }
 
-    /// Return 
+    /// Returns the value of the integer constant which is the current token.
+    public int intVal() {
+        if (kinds[current] == INT_CONST) {
+            return intValues[current];
+        } else {
+            throw new IllegalArgumentException("Current token is not an integer constant: " + stringVal());
+        }
+    }
+
+    /// Return
     public String type() {
-        String currentType = tokenType();
-        if (currentType == "identifier" || "int char boolean".contains(stringVal())) {
+        if (kinds[current] == IDENTIFIER || isKeyword(INT) || isKeyword(CHAR) || isKeyword(BOOLEAN)) {
             return stringVal();
         } else {
             throw new IllegalArgumentException("Current token is not a type: " + stringVal());
@@ -150,18 +230,21 @@ public class JackTokenizer {
     }
 
     public String routineType() {
-        String currentType = tokenType();
-        if (currentType == "identifier" || "int char boolean void".contains(stringVal())) {
+        if (kinds[current] == IDENTIFIER || isKeyword(INT) || isKeyword(CHAR) || isKeyword(BOOLEAN)
+                || isKeyword(VOID)) {
             return stringVal();
         } else {
             throw new IllegalArgumentException("Current token is not a type: " + stringVal());
         }
     }
 
+    private boolean isKeyword(int keyword) {
+        return kinds[current] == KEYWORD && keywords[current] == keyword;
+    }
+
 
     /// Returns the string value of the current token, without the double quotes.
     public String stringVal() {
-        String token = tokens.get(currentIndex);
-        return token;
+        return texts[current];
     }
 }
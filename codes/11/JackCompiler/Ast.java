@@ -0,0 +1,176 @@
+import java.util.Arrays;
+
+/// Syntax tree of one Jack class, kept in an arena: a node is an index
+/// into parallel arrays, so building a class allocates a handful of arrays
+/// instead of one object per node. Lists (class variables, subroutines,
+/// parameters, locals, statements, call arguments) are chained through
+/// next, starting from a child slot of their parent; NONE ends a list or
+/// marks an absent child.
+///
+/// What the slots of a node hold depends on its kind:
+///
+///     CLASS       name; a = class variables; b = subroutines
+///     CLASS_VAR   name, type; value = STATIC or FIELD
+///     SUBROUTINE  name, type = return type; value = CONSTRUCTOR, FUNCTION
+///                 or METHOD; a = parameters; b = locals; c = statements
+///     PARAMETER   name, type
+///     LOCAL       name, type
+///     LET         name; a = index or NONE; b = value
+///     IF          a = condition; b = then statements; c = else statements
+///     WHILE       a = condition; b = statements
+///     DO          a = call
+///     RETURN      a = value or NONE
+///     INT         value; any 16-bit value once constants are folded
+///     STRING      name = the literal with its double quotes
+///     KEYWORD     value = TRUE, FALSE, NULL or THIS
+///     VARIABLE    name
+///     INDEX       name; a = index
+///     CALL        name = class, variable or subroutine before the dot;
+///                 type = subroutine after the dot, or null; a = arguments
+///     UNARY       value = '-' or '~'; a = operand
+///     BINARY      value = operator character; a = left; b = right
+public class Ast {
+    public static final int NONE = -1;
+
+    // node kinds
+    public static final int CLASS = 0;
+    public static final int CLASS_VAR = 1;
+    public static final int SUBROUTINE = 2;
+    public static final int PARAMETER = 3;
+    public static final int LOCAL = 4;
+    public static final int LET = 5;
+    public static final int IF = 6;
+    public static final int WHILE = 7;
+    public static final int DO = 8;
+    public static final int RETURN = 9;
+    public static final int INT = 10;
+    public static final int STRING = 11;
+    public static final int KEYWORD = 12;
+    public static final int VARIABLE = 13;
+    public static final int INDEX = 14;
+    public static final int CALL = 15;
+    public static final int UNARY = 16;
+    public static final int BINARY = 17;
+
+    // values of CLASS_VAR, SUBROUTINE and KEYWORD nodes
+    public static final int STATIC = 0;
+    public static final int FIELD = 1;
+    public static final int CONSTRUCTOR = 0;
+    public static final int FUNCTION = 1;
+    public static final int METHOD = 2;
+    public static final int TRUE = 0;
+    public static final int FALSE = 1;
+    public static final int NULL = 2;
+    public static final int THIS = 3;
+
+    private int size = 0;
+    private int[] kinds = new int[256];
+    private int[] values = new int[256];
+    private int[] as = new int[256];
+    private int[] bs = new int[256];
+    private int[] cs = new int[256];
+    private int[] nexts = new int[256];
+    private String[] names = new String[256];
+    private String[] types = new String[256];
+
+    /// Add a node without children; returns its index
+    public int add(int kind, int value, String name, String type) {
+        if (size == kinds.length) {
+            grow();
+        }
+        kinds[size] = kind;
+        values[size] = value;
+        names[size] = name;
+        types[size] = type;
+        as[size] = NONE;
+        bs[size] = NONE;
+        cs[size] = NONE;
+        nexts[size] = NONE;
+        return size++;
+    }
+
+    private void grow() {
+        int capacity = kinds.length * 2;
+        kinds = Arrays.copyOf(kinds, capacity);
+        values = Arrays.copyOf(values, capacity);
+        as = Arrays.copyOf(as, capacity);
+        bs = Arrays.copyOf(bs, capacity);
+        cs = Arrays.copyOf(cs, capacity);
+        nexts = Arrays.copyOf(nexts, capacity);
+        names = Arrays.copyOf(names, capacity);
+        types = Arrays.copyOf(types, capacity);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int kind(int node) {
+        return kinds[node];
+    }
+
+    public int value(int node) {
+        return values[node];
+    }
+
+    public String name(int node) {
+        return names[node];
+    }
+
+    public String type(int node) {
+        return types[node];
+    }
+
+    public int a(int node) {
+        return as[node];
+    }
+
+    public int b(int node) {
+        return bs[node];
+    }
+
+    public int c(int node) {
+        return cs[node];
+    }
+
+    public int next(int node) {
+        return nexts[node];
+    }
+
+    public void setA(int node, int child) {
+        as[node] = child;
+    }
+
+    public void setB(int node, int child) {
+        bs[node] = child;
+    }
+
+    public void setC(int node, int child) {
+        cs[node] = child;
+    }
+
+    public void setNext(int node, int next) {
+        nexts[node] = next;
+    }
+
+    /// Turn node into a leaf of another kind in place, keeping its place in
+    /// any list; for passes that rewrite the tree
+    public void replace(int node, int kind, int value) {
+        kinds[node] = kind;
+        values[node] = value;
+        names[node] = null;
+        types[node] = null;
+        as[node] = NONE;
+        bs[node] = NONE;
+        cs[node] = NONE;
+    }
+
+    /// number of nodes in the list starting at first
+    public int count(int first) {
+        int count = 0;
+        for (int node = first; node != NONE; node = nexts[node]) {
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,309 @@
+/// Code generation pass: walks the Ast of one class and writes its VM code.
+/// The symbol tables are filled here, as the walk reaches each class
+/// variable, parameter and local.
+public class CodeGenerator {
+    private final Ast ast;
+    private final VMWriter writer;
+    private String className = "";
+    private SymbolTable classLevelSymbolTable = new SymbolTable();      // class level symbol table
+    private SymbolTable subroutineLevelSymbolTable = new SymbolTable(); // subroutine level symbol table
+    private int labelIndex = 0;
+
+    public CodeGenerator(Ast ast, VMWriter writer) {
+        this.ast = ast;
+        this.writer = writer;
+    }
+
+    private boolean writeSymbol(String symbol, boolean pushOrPop) {
+        String kind;
+        int index;
+        if (subroutineLevelSymbolTable.contains(symbol)) {
+            kind = subroutineLevelSymbolTable.kindOf(symbol);
+            index = subroutineLevelSymbolTable.indexOf(symbol);
+        } else if (classLevelSymbolTable.contains(symbol)) {
+            kind = classLevelSymbolTable.kindOf(symbol);
+            index = classLevelSymbolTable.indexOf(symbol);
+        } else if (symbol.equals("this")) {
+            kind = "pointer";
+            index = 0;
+        } else {
+            return false;
+        }
+        // according to each
+        String segment;
+        switch (kind) {
+            case "argument":
+                segment = "argument";
+                break;
+            case "var":
+                segment = "local";
+                break;
+            case "static":
+                segment = "static";
+                break;
+            case "field":
+                segment = "this";
+                break;
+            case "pointer":
+                segment = "pointer";
+                break;
+            default:
+                return false;
+        }
+        if (pushOrPop) {
+            writer.writePush(segment, index);
+        } else {
+            writer.writePop(segment, index);
+        }
+        return true;
+    }
+
+    /// Generates the code of a CLASS node
+    public void generateClass(int node) {
+        className = ast.name(node);
+        for (int var = ast.a(node); var != Ast.NONE; var = ast.next(var)) {
+            String kind = ast.value(var) == Ast.STATIC ? "static" : "field";
+            classLevelSymbolTable.define(ast.name(var), ast.type(var), kind);
+        }
+        for (int sub = ast.b(node); sub != Ast.NONE; sub = ast.next(sub)) {
+            generateSubroutine(sub);
+        }
+    }
+
+    private void generateSubroutine(int node) {
+        subroutineLevelSymbolTable.clear();
+        for (int param = ast.a(node); param != Ast.NONE; param = ast.next(param)) {
+            subroutineLevelSymbolTable.define(ast.name(param), ast.type(param), "argument");
+        }
+        int varCnt = 0;
+        for (int local = ast.b(node); local != Ast.NONE; local = ast.next(local)) {
+            subroutineLevelSymbolTable.define(ast.name(local), ast.type(local), "var");
+            varCnt++;
+        }
+        writer.writePlainText(String.format("function %s.%s %d\n", className, ast.name(node), varCnt));
+
+        boolean isVoid = ast.type(node).equals("void");
+        switch (ast.value(node)) {
+            case Ast.CONSTRUCTOR:
+                // calling memory.alloc n to allocate memory for arguments
+                // and set pointer 0 to alloc's return value
+                writer.writePush("constant", classLevelSymbolTable.varCount("field"));
+                writer.writePlainText("call Memory.alloc 1");
+                writer.writePop("pointer", 0);
+                generateStatements(ast.c(node));
+
+                // return pointer 0
+                writer.writePush("pointer", 0);
+                writer.writeReturn();
+                return;
+            case Ast.METHOD:
+                subroutineLevelSymbolTable.define("this", className, "argument");
+
+                // set pointer 0 to argument 0
+                writer.writePush("argument", 0);
+                writer.writePop("pointer", 0);
+                break;
+            default:
+                break;
+        }
+        generateStatements(ast.c(node));
+
+        // if void, return 0;
+        if (isVoid) {
+            writer.writePush("constant", 0);
+            writer.writeReturn();
+        }
+    }
+
+    private void generateStatements(int first) {
+        for (int node = first; node != Ast.NONE; node = ast.next(node)) {
+            switch (ast.kind(node)) {
+                case Ast.LET:
+                    generateLet(node);
+                    break;
+                case Ast.IF:
+                    generateIf(node);
+                    break;
+                case Ast.WHILE:
+                    generateWhile(node);
+                    break;
+                case Ast.DO:
+                    generateCall(ast.a(node));
+                    writer.writePop("temp", 0);
+                    break;
+                case Ast.RETURN:
+                    if (ast.a(node) != Ast.NONE) {
+                        generateExpression(ast.a(node));
+                    } else {
+                        writer.writePush("constant", 0);
+                    }
+                    writer.writeReturn();
+                    break;
+                default:
+                    throw new IllegalArgumentException("Not a statement: node kind " + ast.kind(node));
+            }
+        }
+    }
+
+    private void generateLet(int node) {
+        String varName = ast.name(node);
+        if (ast.a(node) != Ast.NONE) {
+            writeSymbol(varName, true);
+            generateExpression(ast.a(node));
+            writer.writePlainText("add");
+            generateExpression(ast.b(node));
+
+            // fixed four sentences
+            writer.writePop("temp", 0);
+            writer.writePop("pointer", 1);
+            writer.writePush("temp", 0);
+            writer.writePop("that", 0);
+        } else {
+            generateExpression(ast.b(node));
+            writeSymbol(varName, false);
+        }
+    }
+
+    private void generateIf(int node) {
+        int index = labelIndex++;
+        generateExpression(ast.a(node));
+        writer.writePlainText("not");
+        writer.writeIf("IF_TRUE" + index);
+        generateStatements(ast.b(node));
+        writer.writeGoto("IF_FALSE" + index);
+        writer.writeLabel("IF_TRUE" + index);
+        generateStatements(ast.c(node));
+        writer.writeLabel("IF_FALSE" + index);
+    }
+
+    private void generateWhile(int node) {
+        int index = labelIndex++;
+        writer.writeLabel("whileLabel1" + index);
+        generateExpression(ast.a(node));
+        writer.writePlainText("not");
+        writer.writeIf("whileLabel2" + index);
+        generateStatements(ast.b(node));
+        writer.writeGoto("whileLabel1" + index);
+        writer.writeLabel("whileLabel2" + index);
+    }
+
+    private void generateExpression(int node) {
+        switch (ast.kind(node)) {
+            case Ast.INT:
+                // push constant only takes 0..32767; a negative folded
+                // value is the complement of a non-negative one
+                if (ast.value(node) >= 0) {
+                    writer.writePush("constant", ast.value(node));
+                } else {
+                    writer.writePush("constant", ~ast.value(node));
+                    writer.writeArithmetic("not");
+                }
+                break;
+            case Ast.STRING:
+                String str = ast.name(node);
+                writer.writePush("constant", str.length());
+                writer.writeCall("String.new", 1);
+                for (int i = 0; i < str.length(); i++) {
+                    writer.writePush("constant", (int)str.charAt(i));
+                    writer.writeCall("String.appendChar", 2);
+                }
+                break;
+            case Ast.KEYWORD:
+                switch (ast.value(node)) {
+                    case Ast.TRUE:
+                        writer.writePush("constant", 0);
+                        writer.writeArithmetic("not");
+                        break;
+                    case Ast.THIS:
+                        writeSymbol("this", true);
+                        break;
+                    default:
+                        writer.writePush("constant", 0);
+                }
+                break;
+            case Ast.VARIABLE:
+                writeSymbol(ast.name(node), true);
+                break;
+            case Ast.INDEX:
+                writeSymbol(ast.name(node), true);
+                generateExpression(ast.a(node));
+                writer.writeArithmetic("add");
+                writer.writePop("pointer", 1);
+                writer.writePush("that", 0);
+                break;
+            case Ast.CALL:
+                generateCall(node);
+                break;
+            case Ast.UNARY:
+                generateExpression(ast.a(node));
+                writer.writeArithmetic(ast.value(node) == '-' ? "neg" : "not");
+                break;
+            case Ast.BINARY:
+                generateExpression(ast.a(node));
+                generateExpression(ast.b(node));
+                writeOperator((char) ast.value(node));
+                break;
+            default:
+                throw new IllegalArgumentException("Not an expression: node kind " + ast.kind(node));
+        }
+    }
+
+    private void writeOperator(char op) {
+        switch (op) {
+            case '+':
+                writer.writeArithmetic("add");
+                break;
+            case '-':
+                writer.writeArithmetic("sub");
+                break;
+            case '*':
+                writer.writeCall("Math.multiply", 2);
+                break;
+            case '/':
+                writer.writeCall("Math.divide", 2);
+                break;
+            case '&':
+                writer.writeArithmetic("and");
+                break;
+            case '|':
+                writer.writeArithmetic("or");
+                break;
+            case '<':
+                writer.writeArithmetic("lt");
+                break;
+            case '>':
+                writer.writeArithmetic("gt");
+                break;
+            default:
+                writer.writeArithmetic("eq");
+        }
+    }
+
+    /// Method calls push their object first: the variable before the dot,
+    /// or this when there is no dot
+    private void generateCall(int node) {
+        String identifier = ast.name(node);
+        int nargs = ast.count(ast.a(node));
+        if (ast.type(node) != null) {
+            // push first identifier into stack
+            if (classLevelSymbolTable.contains(identifier) || subroutineLevelSymbolTable.contains(identifier)) {
+                nargs++;
+                writeSymbol(identifier, true);
+                if (classLevelSymbolTable.contains(identifier)) {
+                    identifier = classLevelSymbolTable.typeOf(identifier);
+                } else {
+                    identifier = subroutineLevelSymbolTable.typeOf(identifier);
+                }
+            }
+            identifier += "." + ast.type(node);
+        } else {
+            nargs++;
+            writer.writePush("pointer", 0);
+            identifier = className + "." + identifier;
+        }
+        for (int arg = ast.a(node); arg != Ast.NONE; arg = ast.next(arg)) {
+            generateExpression(arg);
+        }
+        writer.writeCall(identifier, nargs);
+    }
+}
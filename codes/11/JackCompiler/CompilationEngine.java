@@ -1,799 +1,400 @@
 import java.io.IOException;
-import java.util.HashSet;
-import java.util.Set;
+import java.io.PrintStream;
+import java.util.Arrays;
 
+/// Parses one Jack class into an Ast and hands it to the CodeGenerator.
+/// The parser only checks the grammar and builds nodes; everything that
+/// needs the symbol tables happens in the generator, so passes that
+/// rewrite the tree, like the ConstantFolder, run in between.
 public class CompilationEngine {
     private JackTokenizer jt;
     private VMWriter writer;
-    private String className;
-    private String subroutineName;
-    private SymbolTable classLevelSymbolTable;      // class level symbol table
-    private SymbolTable subroutineLevelSymbolTable; // subroutine level symbol table
-    private OpStack ops;
-    private int labelIndex = 0;
-
-    private static final Set<String> operators = new HashSet<>();
-
-    static {
-        // Initialize the set with operators
-        operators.add("+");
-        operators.add("-");
-        operators.add("*");
-        operators.add("/");
-        operators.add("&");
-        operators.add("|");
-        operators.add("<");
-        operators.add(">");
-        operators.add("=");
-    }
-
-    private boolean writeSymbol(String symbol, boolean pushOrPop) {
-        String kind; 
-        int index;
-        if (subroutineLevelSymbolTable.contains(symbol)) {
-            kind = subroutineLevelSymbolTable.kindOf(symbol);
-            index = subroutineLevelSymbolTable.indexOf(symbol);
-        } else if (classLevelSymbolTable.contains(symbol)) {
-            kind = classLevelSymbolTable.kindOf(symbol);
-            index = classLevelSymbolTable.indexOf(symbol);
-        } else if (symbol.equals("this")) {
-            kind = "pointer";
-            index = 0;
-        } else {
-            return false;
-        }
-        // according to each 
-        String segment;
-        switch (kind) {
-            case "argument":
-                segment = "argument";
-                break;
-            case "var":
-                segment = "local";
-                break;
-            case "static":
-                segment = "static";
-                break;
-            case "field":
-                segment = "this";
-                break;
-            case "pointer":
-                segment = "pointer";
-                break;
+    private final Ast ast = new Ast();
+    // where compile errors are reported
+    private PrintStream errors = System.err;
+    // whether constant expressions are evaluated at compile time
+    private boolean fold = true;
+
+    // operands and operators of the expressions being parsed; an
+    // expression only touches the part above the heights it started at
+    private int[] operands = new int[16];
+    private int operandCount = 0;
+    private char[] operators = new char[16];
+    private int operatorCount = 0;
+
+    /// binding power of a binary operator, or -1 for any other symbol. An
+    /// operator is only reduced when a weaker one follows it, so operators
+    /// of equal power group to the right.
+    private static int precedence(char symbol) {
+        switch (symbol) {
+            case '&':
+            case '|':
+                return 3;
+            case '*':
+            case '/':
+                return 2;
+            case '+':
+            case '-':
+                return 1;
+            case '<':
+            case '>':
+            case '=':
+                return 0;
             default:
-                return false;
-        }
-        if (pushOrPop) {
-            writer.writePush(segment, index);
-        } else {
-            writer.writePop(segment, index);
+                return -1;
         }
-        return true;
     }
 
     /// Constructor
     public CompilationEngine(JackTokenizer jt, String outputFile) throws IOException {
         this.jt = jt;
         this.writer = new VMWriter(outputFile);
-        this.className = "";
-        this.subroutineName = "";
-        this.classLevelSymbolTable = new SymbolTable();
-        this.subroutineLevelSymbolTable = new SymbolTable();
-        this.ops = new OpStack(writer);
     }
 
-    /// Compiles a complete class.
-    public void compileClass() throws IOException {
-        try {
-            // class
-            jt.advance();
-
-            // className 
-            String className = jt.identifier();
-            jt.advance();
-
-            // set className
-            this.className = className;
-            
-            // { symbol begin 
-            jt.advance();
-
-            // compile classVarDec 
-            while (compileClassVarDec());
-
-            // compile subroutineDec
-            while (compileSubroutine());
-
-            // } symbol end
-            jt.advance();
-
-            // end class 
-        } catch (IllegalArgumentException e) {
-            System.err.println(e);
-        }
-        writer.close();
+    /// Report compile errors to errors instead of System.err
+    public void setErrors(PrintStream errors) {
+        this.errors = errors;
     }
 
-    /// Compiles a static declaration or a field declaration.
-    private boolean compileClassVarDec() throws IOException {
-        // static | field keyword
-        String keyword = jt.keyWord();
-        if (!keyword.equals("static") && !keyword.equals("field")) {
-            return false;
-        }
-        jt.advance();
-
-        try {
-            // type
-            String type = jt.type();
-            jt.advance();
-            // varName
-            String varName = jt.identifier();
-            jt.advance();
-
-            // write the var variable into symboltable
-            classLevelSymbolTable.define(varName, type, keyword);
-
-            // maybe more varName
-            while (true) {
-                try {
-                    String comma = jt.symbol();
-                    jt.advance();
-                    if (comma.equals(";")) {
-                        break;
-                    }
-                    String varNameMore = jt.identifier();
-                    jt.advance();
-
-                    // write more var variable into symboltable
-                    classLevelSymbolTable.define(varNameMore, type, keyword);
-
-                } catch (IllegalArgumentException e) {
-                    break;
-                }
-            }
-        } catch (IllegalArgumentException e) {
-            return false;
-        }
-        return true;
-    }
-
-    /// Compiles a complete method, function, or constructor.
-    private boolean compileSubroutine() throws IOException {
-        // constructor | function | method
-        String keyword;
-        try {
-            keyword = jt.keyWord();
-        } catch (IllegalArgumentException e) {
-            return false;
-        }
-        if (!keyword.equals("constructor") && !keyword.equals("function") && !keyword.equals("method")) {
-            return false;
-        }
-        jt.advance();
-
-        // judge its subroutine types
-        subroutineLevelSymbolTable.clear();
-
-        // First case, constructor
-        String returnType = jt.routineType();  
-        jt.advance();
-        subroutineName = jt.identifier();
-        jt.advance();
-        jt.advance(); // (
-        compileParameterList();
-        jt.advance(); // )
-        jt.advance(); // {
-
-        int varCnt = 0, temp = 0;
-        while ((temp = compileVarDec()) > 0) {
-            varCnt += temp;
-        }
-        writer.writePlainText(String.format("function %s.%s %d\n", className, subroutineName, varCnt));
-        if (keyword.equals("constructor")) {
-            // calling memory.alloc n to allocate memory for arguments
-            // and set pointer 0 to alloc's return value
-            writer.writePush("constant", classLevelSymbolTable.varCount("field"));
-            writer.writePlainText("call Memory.alloc 1");
-            writer.writePop("pointer", 0);
-
-            // compile main body
-            compileSubroutineBody();
-
-            // return pointer 0
-            writer.writePush("pointer", 0);
-            writer.writeReturn();
-        } else if (keyword.equals("method")) {
-            subroutineLevelSymbolTable.define("this", className, "argument");
-
-            // set pointer 0 to argument 0
-            writer.writePush("argument", 0);
-            writer.writePop("pointer", 0);
-
-            // compile main body
-            compileSubroutineBody();
-
-            // if void, return 0;
-            if (returnType.equals("void")) {
-                writer.writePush("constant", 0);
-                writer.writeReturn();
-            }
-        } else if (keyword.equals("function")) {
-            // compile main body
-            compileSubroutineBody();
-
-            // if void, return 0;
-            if (returnType.equals("void")) {
-                writer.writePush("constant", 0);
-                writer.writeReturn();
-            }
-        }
-
-
-        return true;
+    /// Turn constant folding on or off; it is on by default
+    public void setFold(boolean fold) {
+        this.fold = fold;
     }
 
-    /// Compiles a (possibly empty) parameter list, not including the enclosing "()".
-    private int compileParameterList() throws IOException {
-        int number = 0;
+    /// Compiles a complete class.
+    public void compileClass() throws IOException {
         try {
-            // type and name
-            String type = jt.type();
-            jt.advance();
-            String varName = jt.identifier();
-            jt.advance();
-            subroutineLevelSymbolTable.define(varName, type, "argument");
-            number++;
-
-            // make sure whether additional var name
-            while (true) {
-                try {
-                    String comma = jt.symbol();
-                    if (comma.equals(",")) {
-                        jt.advance();
-                    } else {
-                        break;
-                    }
-
-                    type = jt.type();
-                    jt.advance();
-
-                    varName = jt.identifier();
-                    jt.advance();
-                    subroutineLevelSymbolTable.define(varName, type, "argument");
-                    number++;
-                } catch (IllegalArgumentException e) {
-                    break;
-                }
+            int root = parseClass();
+            if (fold) {
+                new ConstantFolder(ast).foldClass(root);
             }
+            new CodeGenerator(ast, writer).generateClass(root);
         } catch (IllegalArgumentException e) {
+            errors.println(e);
         }
-        return number;
+        writer.close();
     }
 
-    private void compileSubroutineBody() throws IOException {
-        try {
-            // compile statements
-            compileStatements();
+    private boolean atSymbol(char symbol) {
+        return jt.tokenType().equals("symbol") && jt.symbol().charAt(0) == symbol;
+    }
 
-            // }
-            String symbol = jt.symbol();
-            if (!symbol.equals("}")) {
-                throw new IllegalArgumentException("Current token is not }");
-            }
-            jt.advance(); 
-        } catch (IllegalArgumentException e) {
-        }
+    private boolean atKeyword(String keyword) {
+        return jt.tokenType().equals("keyword") && jt.keyWord().equals(keyword);
     }
 
-    /// Compiles a var declaration.
-    private int compileVarDec() throws IOException {
-        int localCnt = 0;
-        // var keyword
-        String keyword = jt.keyWord();
-        if (!keyword.equals("var")) {
-            return localCnt;
+    private void expect(char symbol) {
+        if (!atSymbol(symbol)) {
+            throw new IllegalArgumentException("Current token is not " + symbol + ": " + jt.stringVal());
         }
         jt.advance();
-
-        // type
-        String type = jt.type();
-        jt.advance();
-
-        // varName
-        String varName = jt.identifier();
-        jt.advance();
-        subroutineLevelSymbolTable.define(varName, type, "var");
-        localCnt++;
-
-        // maybe more varName
-        while (true) {
-            try {
-                String comma = jt.symbol();
-                if (comma.equals(";")) {
-                    jt.advance();
-                    break;
-                }
-                jt.advance();
-                String varNameMore = jt.identifier();
-                jt.advance();
-                subroutineLevelSymbolTable.define(varNameMore, type, "var");
-                localCnt++;
-            } catch (IllegalArgumentException e) {
-                break;
-            }
-        }
-        return localCnt;
     }
 
-    /// Compiles a sequence of statements, not including the enclosing "{}".
-    private void compileStatements() throws IOException {
-        while (true) {
-            try {
-                String keyword = jt.keyWord();
-                if (!"let if while do return".contains(keyword)) {
-                    break;
-                }
-                if (keyword.equals("let")) {
-                    compileLet();
-                } else if (keyword.equals("if")) {
-                    compileIf();
-                } else if (keyword.equals("while")) {
-                    compileWhile();
-                } else if (keyword.equals("do")) {
-                    compileDo();
-                } else if (keyword.equals("return")) {
-                    compileReturn();
-                }
-            } catch (IllegalArgumentException e) {
-                break;
-            }
-        }
+    private String expectIdentifier() {
+        String identifier = jt.identifier();
+        jt.advance();
+        return identifier;
     }
 
-    /// method that compiles a let statement
-    private void compileLet() throws IOException {
-        // let keyword
-        String keyword = jt.keyWord();
-        if (!keyword.equals("let")) {
-            return;
+    /// Parses a class: class className { classVarDec* subroutineDec* }
+    private int parseClass() {
+        if (!atKeyword("class")) {
+            throw new IllegalArgumentException("Current token is not class: " + jt.stringVal());
         }
         jt.advance();
+        int node = ast.add(Ast.CLASS, 0, expectIdentifier(), null);
+        expect('{');
 
-        // varName
-        String varName = jt.identifier();
-        jt.advance();
-
-
-        String symbol = jt.symbol();
-        // Case 1: with []
-        if (symbol.equals("[")) {
-            jt.advance();
-            ops.push("[");
-            writeSymbol(varName, true);
-            compileExpression();
-            writer.writePlainText("add");
-            symbol = jt.symbol(); // ]
-            jt.advance();
-            
-            // =
-            symbol = jt.symbol();
-            if (!symbol.equals("=")) {
-                throw new IllegalArgumentException("Current token is not =");
-            }
+        int last = Ast.NONE;
+        while (atKeyword("static") || atKeyword("field")) {
+            int kind = atKeyword("static") ? Ast.STATIC : Ast.FIELD;
             jt.advance();
-
-            // right hand expression
-            compileExpression();
-
-            // fixed four sentences
-            writer.writePop("temp", 0);
-            writer.writePop("pointer", 1);
-            writer.writePush("temp", 0);
-            writer.writePop("that", 0);
-        } else if (symbol.equals("=")) {
-            // Case 2: without []
+            String type = jt.type();
             jt.advance();
-            compileExpression();
-            writeSymbol(varName, false);
-        } else {
-            throw new IllegalArgumentException("unkown symbol");
+            do {
+                int var = ast.add(Ast.CLASS_VAR, kind, expectIdentifier(), type);
+                last = append(node, last, var, 'a');
+            } while (atSymbol(',') && advance());
+            expect(';');
         }
 
-        // ;
-        symbol = jt.symbol();
-        if (!symbol.equals(";")) {
-            throw new IllegalArgumentException("Current token is not ;");
+        last = Ast.NONE;
+        while (atKeyword("constructor") || atKeyword("function") || atKeyword("method")) {
+            last = append(node, last, parseSubroutine(), 'b');
         }
-        jt.advance();
+        expect('}');
+        return node;
     }
 
-    /// method that compiles an if statement, possibly with a trailing else clause
-    private void compileIf() throws IOException {
-        int index = labelIndex++;
-        // if keyword
-        String keyword = jt.keyWord();
-        if (!keyword.equals("if")) {
-            throw new IllegalArgumentException("Current token is not if");
-        }
+    /// advance past a separator; true so it can end a loop condition
+    private boolean advance() {
         jt.advance();
+        return true;
+    }
 
-        // (
-        String symbol = jt.symbol();
-        if (!symbol.equals("(")) {
-            throw new IllegalArgumentException("Current token is not (");
+    /// Chain node after last, or into the given child slot of parent when
+    /// it is the first of its list; returns the new last node
+    private int append(int parent, int last, int node, char slot) {
+        if (last != Ast.NONE) {
+            ast.setNext(last, node);
+        } else if (slot == 'a') {
+            ast.setA(parent, node);
+        } else if (slot == 'b') {
+            ast.setB(parent, node);
+        } else {
+            ast.setC(parent, node);
         }
-        jt.advance();
-
-        // expression
-        compileExpression();
-        writer.writePlainText("not");
-        writer.writeIf("IF_TRUE" + index);
+        return node;
+    }
 
-        // )
-        symbol = jt.symbol();
-        if (!symbol.equals(")")) {
-            throw new IllegalArgumentException("Current token is not )");
-        }
+    /// Parses a constructor, function or method with its parameters,
+    /// locals and statements
+    private int parseSubroutine() {
+        int kind = atKeyword("constructor") ? Ast.CONSTRUCTOR
+                : atKeyword("function") ? Ast.FUNCTION : Ast.METHOD;
         jt.advance();
-
-        // {
-        symbol = jt.symbol();
-        if (!symbol.equals("{")) {
-            throw new IllegalArgumentException("Current token is not {");
-        }
+        String returnType = jt.routineType();
         jt.advance();
+        int node = ast.add(Ast.SUBROUTINE, kind, expectIdentifier(), returnType);
 
-        // statements
-        compileStatements();
-        writer.writeGoto("IF_FALSE" + index);
-
-        // }
-        symbol = jt.symbol();
-        if (!symbol.equals("}")) {
-            throw new IllegalArgumentException("Current token is not }");
+        expect('(');
+        int last = Ast.NONE;
+        if (!atSymbol(')')) {
+            do {
+                String type = jt.type();
+                jt.advance();
+                last = append(node, last, ast.add(Ast.PARAMETER, 0, expectIdentifier(), type), 'a');
+            } while (atSymbol(',') && advance());
         }
-        jt.advance();
-        writer.writeLabel("IF_TRUE" + index);
+        expect(')');
 
-        // maybe else
-        try {
-            keyword = jt.keyWord();
-            if (!keyword.equals("else")) {
-                throw new IllegalArgumentException("Current token is not else");
-            }
+        expect('{');
+        last = Ast.NONE;
+        while (atKeyword("var")) {
             jt.advance();
-        
-            // {
-            symbol = jt.symbol();
-            if (!symbol.equals("{")) {
-                throw new IllegalArgumentException("Current token is not {");
-            }
+            String type = jt.type();
             jt.advance();
+            do {
+                last = append(node, last, ast.add(Ast.LOCAL, 0, expectIdentifier(), type), 'b');
+            } while (atSymbol(',') && advance());
+            expect(';');
+        }
+        ast.setC(node, parseStatements());
+        expect('}');
+        return node;
+    }
 
-            // statements
-            compileStatements();
-
-            // }
-            symbol = jt.symbol();
-            if (!symbol.equals("}")) {
-                throw new IllegalArgumentException("Current token is not }");
+    /// Parses a sequence of statements, not including the enclosing "{}";
+    /// returns the first one, or NONE
+    private int parseStatements() {
+        int first = Ast.NONE;
+        int last = Ast.NONE;
+        while (jt.tokenType().equals("keyword")) {
+            int statement;
+            switch (jt.keyWord()) {
+                case "let":
+                    statement = parseLet();
+                    break;
+                case "if":
+                    statement = parseIf();
+                    break;
+                case "while":
+                    statement = parseWhile();
+                    break;
+                case "do":
+                    jt.advance();
+                    statement = ast.add(Ast.DO, 0, null, null);
+                    ast.setA(statement, parseCall());
+                    expect(';');
+                    break;
+                case "return":
+                    jt.advance();
+                    statement = ast.add(Ast.RETURN, 0, null, null);
+                    if (!atSymbol(';')) {
+                        ast.setA(statement, parseExpression());
+                    }
+                    expect(';');
+                    break;
+                default:
+                    return first;
             }
-            jt.advance();
-        } catch (IllegalArgumentException e) {
+            if (last == Ast.NONE) {
+                first = statement;
+            } else {
+                ast.setNext(last, statement);
+            }
+            last = statement;
         }
-        writer.writeLabel("IF_FALSE" + index);
+        return first;
     }
 
-    /// method that compiles a while statement
-    private void compileWhile() throws IOException {
-        // while keyword
-        int index = labelIndex++;
-        String keyword = jt.keyWord();
-        if (!keyword.equals("while")) {
-            throw new IllegalArgumentException("Current token is not while");
-        }
-        jt.advance();
-        writer.writeLabel("whileLabel1" + index);
-
-        // (
-        String symbol = jt.symbol();
-        if (!symbol.equals("(")) {
-            throw new IllegalArgumentException("Current token is not (");
-        }
+    /// let varName ([ expression ])? = expression ;
+    private int parseLet() {
         jt.advance();
-
-        // expression
-        compileExpression();
-        writer.writePlainText("not");
-        writer.writeIf("whileLabel2" + index);
-
-        // )
-        symbol = jt.symbol();
-        if (!symbol.equals(")")) {
-            throw new IllegalArgumentException("Current token is not )");
-        }
-        jt.advance();
-
-        // {
-        symbol = jt.symbol();
-        if (!symbol.equals("{")) {
-            throw new IllegalArgumentException("Current token is not {");
-        }
-        jt.advance();
-
-        // statements
-        compileStatements();
-        writer.writeGoto("whileLabel1" + index);
-
-        // }
-        symbol = jt.symbol();
-        if (!symbol.equals("}")) {
-            throw new IllegalArgumentException("Current token is not }");
+        int node = ast.add(Ast.LET, 0, expectIdentifier(), null);
+        if (atSymbol('[')) {
+            jt.advance();
+            ast.setA(node, parseExpression());
+            expect(']');
         }
-        jt.advance();
-
-        writer.writeLabel("whileLabel2" + index);
+        expect('=');
+        ast.setB(node, parseExpression());
+        expect(';');
+        return node;
     }
 
-    /// method that compiles a do statement
-    public void compileDo() throws IOException {
-        // do keyword
-        String keyword = jt.keyWord();
-        if (!keyword.equals("do")) {
-            throw new IllegalArgumentException("Current token is not do");
-        }
+    /// if ( expression ) { statements } (else { statements })?
+    private int parseIf() {
         jt.advance();
-
-        // subroutineCall
-        compileSubroutineCall();
-
-        // ;
-        String symbol = jt.symbol();
-        if (!symbol.equals(";")) {
-            throw new IllegalArgumentException("Current token is not ;");
+        int node = ast.add(Ast.IF, 0, null, null);
+        expect('(');
+        ast.setA(node, parseExpression());
+        expect(')');
+        expect('{');
+        ast.setB(node, parseStatements());
+        expect('}');
+        if (atKeyword("else")) {
+            jt.advance();
+            expect('{');
+            ast.setC(node, parseStatements());
+            expect('}');
         }
-        jt.advance();
-        writer.writePop("temp", 0);
+        return node;
     }
 
-
-    /// method that compiles a return statement
-    private void compileReturn() throws IOException {
-        // return keyword
-        String keyword = jt.keyWord();
-        if (!keyword.equals("return")) {
-            throw new IllegalArgumentException("Current token is not return");
-        }
+    /// while ( expression ) { statements }
+    private int parseWhile() {
         jt.advance();
-
-        // maybe expression
-        if (!jt.stringVal().equals(";")) {
-            compileExpression();
-        } else {
-            writer.writePush("constant", 0);
-        }
-
-        // ;
-        String symbol = jt.symbol();
-        if (!symbol.equals(";")) {
-            throw new IllegalArgumentException("Current token is not ;");
-        }
-        jt.advance();
-        writer.writeReturn();
+        int node = ast.add(Ast.WHILE, 0, null, null);
+        expect('(');
+        ast.setA(node, parseExpression());
+        expect(')');
+        expect('{');
+        ast.setB(node, parseStatements());
+        expect('}');
+        return node;
     }
 
-    /// Compiles an expression.
-    private void compileExpression() throws IOException {
-        // compile the first term
-        compileTerm();
-
-        // maybe more term
-        while (true) {
-            String symbol = jt.symbol().trim();
-            // maybe this symbol is ]
-            if (symbol.equals("]")) {
-                ops.popUntilLastBracket();
-                return;
-            }
-            // maybe this symbol is )
-
-            if (symbol.equals(")")) {
-                if (!ops.contains("(")) {
-                    break;
-                }
-                ops.popUntil();
-                jt.advance();
-                continue;
+    /// Parses term (op term)* into a tree of BINARY nodes
+    private int parseExpression() {
+        int operandBase = operandCount;
+        int operatorBase = operatorCount;
+        pushOperand(parseTerm());
+        while (jt.tokenType().equals("symbol") && precedence(jt.symbol().charAt(0)) >= 0) {
+            char op = jt.symbol().charAt(0);
+            jt.advance();
+            while (operatorCount > operatorBase && precedence(op) < precedence(operators[operatorCount - 1])) {
+                reduce();
             }
-
-            // if the next string is not an operation
-            symbol = jt.symbol().trim();
-            if (!operators.contains(symbol)) {
-                break;
-            } else {
-                ops.push(symbol);
+            if (operatorCount == operators.length) {
+                operators = Arrays.copyOf(operators, operatorCount * 2);
             }
-            jt.advance();
-
-            // compile the next term
-            compileTerm();
+            operators[operatorCount++] = op;
+            pushOperand(parseTerm());
         }
-
-        // pop all the operations
-        ops.popUntil();
+        while (operatorCount > operatorBase) {
+            reduce();
+        }
+        operandCount = operandBase;
+        return operands[operandBase];
     }
 
-
-    /// Compiles a term. 
-    private void compileTerm() throws IOException {
-        try {
-            String tokenType = jt.tokenType();
-            switch (tokenType) {
-                case "integerConstant":
-                    writer.writePush("constant", Integer.parseInt(jt.stringVal()));
-                    jt.advance();
-                    break;
-                case "stringConstant":
-                    String str = jt.stringVal();
-                    writer.writePush("constant", str.length());
-                    writer.writeCall("String.new", 1);
-                    for (int i = 0; i < str.length(); i++) {
-                        writer.writePush("constant", (int)str.charAt(i));
-                        writer.writeCall("String.appendChar", 2);
-                    }
-                    jt.advance();
-                    break;
-                case "keyword":
-                    String keyword = jt.keyWord();
-                    switch (keyword) {
-                        case "true":
-                            writer.writePush("constant", 0);
-                            writer.writeArithmetic("not");
-                            break;
-                        case "false":
-                        case "null":
-                            writer.writePush("constant", 0);
-                            break;
-                        case "this":
-                            writeSymbol(keyword, true);
-                            break;
-                    }
-                    jt.advance();
-                    break;
-                case "identifier":
-                    String identifier = jt.identifier();
-                    if (jt.nextString().equals("[")) {
-                        ops.push("[");
-                        writeSymbol(identifier, true);
-                        jt.advance(); jt.advance();
-                        compileExpression();
-                        writer.writeArithmetic("add");
-                        writer.writePop("pointer", 1);
-                        writer.writePush("that", 0);
-                        jt.advance();
-                    } else if (jt.nextString().equals("(") || jt.nextString().equals(".")) {
-                        compileSubroutineCall(); // Assume this starts right after identifier
-                    } else {
-                        writeSymbol(identifier, true);
-                        jt.advance();
-                    }
-                    break;
-                case "symbol":
-                    String symbol = jt.symbol();
-                    if (symbol.equals("(")) {
-                        jt.advance();
-                        ops.push("(");
-                        compileTerm();
-                    } else if (symbol.equals("~") || symbol.equals("-")) {
-                        jt.advance();
-                        if (symbol.equals("~")) {
-                            ops.push("~");
-                        } else {
-                            ops.push("neg");
-                        }
-                        compileTerm();
-                    }
-                    break;
-            }
-        } catch (IllegalArgumentException e) {
-            System.err.println("Error compiling term: " + e.getMessage());
+    private void pushOperand(int node) {
+        if (operandCount == operands.length) {
+            operands = Arrays.copyOf(operands, operandCount * 2);
         }
+        operands[operandCount++] = node;
     }
 
+    /// Combine the top operator with the top two operands
+    private void reduce() {
+        int right = operands[--operandCount];
+        int left = operands[--operandCount];
+        int node = ast.add(Ast.BINARY, operators[--operatorCount], null, null);
+        ast.setA(node, left);
+        ast.setB(node, right);
+        pushOperand(node);
+    }
 
-    /// Compiles a subroutine call
-    private void compileSubroutineCall() throws IOException {
-        try {
-            // subroutineName | className | varName
-            String identifier = jt.identifier();
-            jt.advance();
-
-            boolean addOne = false; 
-            // maybe more
-            try {
-                String symbol = jt.symbol();
-                if (symbol.equals(".")) {
+    /// Parses a term; a unary operator applies to the term right after it
+    private int parseTerm() {
+        int node;
+        switch (jt.tokenType()) {
+            case "integerConstant":
+                node = ast.add(Ast.INT, jt.intVal(), null, null);
+                jt.advance();
+                return node;
+            case "stringConstant":
+                node = ast.add(Ast.STRING, 0, jt.stringVal(), null);
+                jt.advance();
+                return node;
+            case "keyword":
+                int value;
+                switch (jt.keyWord()) {
+                    case "true":
+                        value = Ast.TRUE;
+                        break;
+                    case "false":
+                        value = Ast.FALSE;
+                        break;
+                    case "null":
+                        value = Ast.NULL;
+                        break;
+                    case "this":
+                        value = Ast.THIS;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Current token is not a term: " + jt.stringVal());
+                }
+                jt.advance();
+                return ast.add(Ast.KEYWORD, value, null, null);
+            case "identifier":
+                String next = jt.nextString();
+                if ("[".equals(next)) {
+                    node = ast.add(Ast.INDEX, 0, expectIdentifier(), null);
                     jt.advance();
-
-                    // push first identifier into stack
-                    if (classLevelSymbolTable.contains(identifier) || subroutineLevelSymbolTable.contains(identifier)) {
-                        addOne = true;
-                        writeSymbol(identifier, true);
-                        if (classLevelSymbolTable.contains(identifier)) {
-                            identifier = classLevelSymbolTable.typeOf(identifier);
-                        } else {
-                            identifier = subroutineLevelSymbolTable.typeOf(identifier);
-                        }
-                    }
-
-                    // subroutineName
-                    String subroutineName = jt.identifier();
-                    identifier += "." + subroutineName;
+                    ast.setA(node, parseExpression());
+                    expect(']');
+                    return node;
+                } else if ("(".equals(next) || ".".equals(next)) {
+                    return parseCall();
+                }
+                return ast.add(Ast.VARIABLE, 0, expectIdentifier(), null);
+            case "symbol":
+                if (atSymbol('(')) {
+                    jt.advance();
+                    node = parseExpression();
+                    expect(')');
+                    return node;
+                } else if (atSymbol('-') || atSymbol('~')) {
+                    node = ast.add(Ast.UNARY, jt.symbol().charAt(0), null, null);
                     jt.advance();
+                    ast.setA(node, parseTerm());
+                    return node;
                 }
-            } catch (IllegalArgumentException e) {
-            }
-
-            if (!identifier.contains(".")) {
-                addOne = true;
-                writer.writePush("pointer", 0);
-                identifier = className + "." + identifier;
-            }
-
-            // (
-            String symbol = jt.symbol();
-            if (!symbol.equals("(")) {
-                throw new IllegalArgumentException("Current token is not (");
-            }
-            jt.advance();
-
-            OpStack temp = this.ops;
-            this.ops = new OpStack(writer);
-            // expressionList
-            int nargs = compileExpressionList();
-
-            // )
-            symbol = jt.symbol();
-            if (!symbol.equals(")")) {
-                throw new IllegalArgumentException("Current token is not )");
-            }
-            jt.advance();
-            this.ops = temp;
-            if (addOne) {
-                nargs += 1;
-            }
-            writer.writeCall(identifier, nargs);
-        } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Current token is not a term: " + jt.stringVal());
+            default:
+                throw new IllegalArgumentException("Current token is not a term: " + jt.stringVal());
         }
     }
 
-    /// Compiles an expression list
-    private int compileExpressionList() throws IOException {
-        if (jt.stringVal().equals(")")) {
-            return 0;
-        }
-        int cnt = 0;
-        compileExpression();
-        cnt += 1;
-        try {
-            while (true) {
-                try {
-                    String symbol = jt.symbol();
-                    if (!symbol.equals(",")) {
-                        break;
-                    }
-                    jt.advance();
-
-                    // compile expression
-                    compileExpression();
-                    cnt += 1;
-                } catch (IllegalArgumentException e) {
-                    break;
-                }
-            }
-        } catch (IllegalArgumentException e) {
-        }
-        return cnt;
+    /// subroutineName ( expressionList ) or name . subroutineName ( expressionList )
+    private int parseCall() {
+        String name = expectIdentifier();
+        String subroutine = null;
+        if (atSymbol('.')) {
+            jt.advance();
+            subroutine = expectIdentifier();
+        }
+        int node = ast.add(Ast.CALL, 0, name, subroutine);
+        expect('(');
+        int last = Ast.NONE;
+        if (!atSymbol(')')) {
+            do {
+                last = append(node, last, parseExpression(), 'a');
+            } while (atSymbol(',') && advance());
+        }
+        expect(')');
+        return node;
     }
 }
@@ -0,0 +1,141 @@
+/// Folding pass: evaluates operators whose operands are constants at
+/// compile time, with the 16-bit two's complement arithmetic of the Hack
+/// machine. `*` and `/` fold as Math.multiply and Math.divide compute them,
+/// so `3 * 4` costs one push instead of an OS call, and `-1` or `~0`
+/// become a single constant. true, false and null count as the constants
+/// -1, 0 and 0. A folded expression is rewritten in place into an INT node,
+/// which may now be negative.
+///
+/// Operators group to the right in this compiler, so `1 + 2 + x` parses
+/// as 1 + (2 + x); for the associative operators + * & | the constants of
+/// such a chain are combined as well, giving 3 + x.
+public class ConstantFolder {
+    private final Ast ast;
+
+    public ConstantFolder(Ast ast) {
+        this.ast = ast;
+    }
+
+    /// Folds every expression of a CLASS node
+    public void foldClass(int node) {
+        for (int sub = ast.b(node); sub != Ast.NONE; sub = ast.next(sub)) {
+            foldStatements(ast.c(sub));
+        }
+    }
+
+    private void foldStatements(int first) {
+        for (int node = first; node != Ast.NONE; node = ast.next(node)) {
+            switch (ast.kind(node)) {
+                case Ast.IF:
+                    foldStatements(ast.b(node));
+                    foldStatements(ast.c(node));
+                    break;
+                case Ast.WHILE:
+                    foldStatements(ast.b(node));
+                    break;
+                default:
+                    break;
+            }
+            // a and b of LET, the condition of IF and WHILE, the call of
+            // DO and the value of RETURN are expressions
+            foldExpression(ast.a(node));
+            if (ast.kind(node) == Ast.LET) {
+                foldExpression(ast.b(node));
+            }
+        }
+    }
+
+    private void foldExpression(int node) {
+        if (node == Ast.NONE) {
+            return;
+        }
+        switch (ast.kind(node)) {
+            case Ast.INDEX:
+                foldExpression(ast.a(node));
+                break;
+            case Ast.CALL:
+                for (int arg = ast.a(node); arg != Ast.NONE; arg = ast.next(arg)) {
+                    foldExpression(arg);
+                }
+                break;
+            case Ast.UNARY:
+                foldExpression(ast.a(node));
+                if (isConstant(ast.a(node))) {
+                    int value = constant(ast.a(node));
+                    ast.replace(node, Ast.INT, ast.value(node) == '-' ? (short) -value : ~value);
+                }
+                break;
+            case Ast.BINARY:
+                foldBinary(node);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void foldBinary(int node) {
+        int left = ast.a(node);
+        int right = ast.b(node);
+        foldExpression(left);
+        foldExpression(right);
+        char op = (char) ast.value(node);
+        if (isConstant(left) && isConstant(right)) {
+            if (foldable(op, constant(left), constant(right))) {
+                ast.replace(node, Ast.INT, apply(op, constant(left), constant(right)));
+            }
+        } else if (isConstant(left) && associative(op)
+                && ast.kind(right) == Ast.BINARY && ast.value(right) == op && isConstant(ast.a(right))) {
+            // c1 op (c2 op e) => (c1 op c2) op e
+            ast.replace(left, Ast.INT, apply(op, constant(left), constant(ast.a(right))));
+            ast.setB(node, ast.b(right));
+        }
+    }
+
+    private static boolean associative(char op) {
+        return op == '+' || op == '*' || op == '&' || op == '|';
+    }
+
+    /// whether op can be evaluated now; division by zero is left to
+    /// Math.divide to report at run time, and -32768 has no absolute value
+    /// for it to divide
+    private static boolean foldable(char op, int x, int y) {
+        return op != '/' || (y != 0 && x != Short.MIN_VALUE && y != Short.MIN_VALUE);
+    }
+
+    /// x op y on 16-bit words; comparisons are signed, as on the reference
+    /// VM emulator, and give true (-1) or false (0)
+    private static int apply(char op, int x, int y) {
+        switch (op) {
+            case '+':
+                return (short) (x + y);
+            case '-':
+                return (short) (x - y);
+            case '*':
+                return (short) (x * y);
+            case '/':
+                return (short) (x / y);
+            case '&':
+                return x & y;
+            case '|':
+                return x | y;
+            case '<':
+                return x < y ? -1 : 0;
+            case '>':
+                return x > y ? -1 : 0;
+            default:
+                return x == y ? -1 : 0;
+        }
+    }
+
+    private boolean isConstant(int node) {
+        return ast.kind(node) == Ast.INT
+                || (ast.kind(node) == Ast.KEYWORD && ast.value(node) != Ast.THIS);
+    }
+
+    private int constant(int node) {
+        if (ast.kind(node) == Ast.INT) {
+            return ast.value(node);
+        }
+        return ast.value(node) == Ast.TRUE ? -1 : 0;
+    }
+}
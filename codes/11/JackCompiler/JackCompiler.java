@@ -1,28 +1,131 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+/// Usage: java JackCompiler [--threads n] [-r] [--no-fold] <jack_file | directory>...
+///
+/// Every .jack file is independent, so the files are compiled on a
+/// work-stealing pool of at most n threads (all cores by default). With -r
+/// directories are searched recursively, so a whole tree of projects is
+/// compiled in one run. Each file reports its errors into its own buffer
+/// and the buffers are printed in path order, so the output does not
+/// depend on scheduling; the exit status is 1 when any file had errors.
+/// --no-fold emits constant expressions as written instead of folding them.
 public class JackCompiler {
+    private static boolean fold = true;
+
     public static void main(String[] args) throws IOException {
-        String file = args[0];
-
-        // Case1: single file
-        if (file.endsWith(".jack")) {
-            String outputFile = file.substring(0, file.lastIndexOf('.')) + ".vm";
-            parseFile(file, outputFile);
-        } else {
-            // Case2: directory
-            String[] files = new java.io.File(file).list();
-            for (String f : files) {
-                if (f.endsWith(".jack")) {
-                    parseFile(file + "/" + f, file + "/" + f.substring(0, f.lastIndexOf('.')) + ".vm");
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean recursive = false;
+        List<File> inputs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--threads") && i + 1 < args.length) {
+                threads = Math.max(1, Integer.parseInt(args[++i]));
+            } else if (args[i].equals("-r")) {
+                recursive = true;
+            } else if (args[i].equals("--no-fold")) {
+                fold = false;
+            } else if (args[i].startsWith("--")) {
+                System.err.println("Unknown option: " + args[i]);
+                usage();
+            } else {
+                inputs.add(new File(args[i]));
+            }
+        }
+        if (inputs.isEmpty()) {
+            usage();
+        }
+
+        List<File> files = new ArrayList<>();
+        for (File input : inputs) {
+            if (input.getName().endsWith(".jack")) {
+                // Case1: single file
+                files.add(input);
+            } else {
+                // Case2: directory
+                collect(input, recursive, files);
+            }
+        }
+        files.sort((a, b) -> a.getPath().compareTo(b.getPath()));
+
+        ExecutorService pool = Executors.newWorkStealingPool(Math.min(threads, Math.max(1, files.size())));
+        List<Future<String>> results = new ArrayList<>();
+        for (File f : files) {
+            results.add(pool.submit(() -> compile(f)));
+        }
+        boolean failed = false;
+        for (int i = 0; i < files.size(); i++) {
+            String errors;
+            try {
+                errors = results.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                errors = e.toString();
+            } catch (ExecutionException e) {
+                errors = e.getCause().toString();
+            }
+            if (!errors.isEmpty()) {
+                failed = true;
+                for (String line : errors.split("\n")) {
+                    System.err.println(files.get(i).getPath() + ": " + line);
                 }
             }
         }
+        pool.shutdown();
+        if (failed) {
+            System.exit(1);
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: java JackCompiler [--threads n] [-r] [--no-fold] <jack_file | directory>...");
+        System.exit(1);
+    }
+
+    /// the .jack files of directory, and of its subdirectories if recursive
+    private static void collect(File directory, boolean recursive, List<File> files) {
+        File[] children = directory.listFiles();
+        if (children == null) {
+            System.err.println("Error: cannot read directory '" + directory + "'");
+            System.exit(1);
+        }
+        for (File child : children) {
+            if (child.isFile() && child.getName().endsWith(".jack")) {
+                files.add(child);
+            } else if (recursive && child.isDirectory()) {
+                collect(child, true, files);
+            }
+        }
+    }
+
+    /// Compile one file next to its source; returns the errors it reported
+    private static String compile(File file) throws IOException {
+        String inputFile = file.getPath();
+        String outputFile = inputFile.substring(0, inputFile.lastIndexOf('.')) + ".vm";
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream errors = new PrintStream(buffer, true);
+        parseFile(inputFile, outputFile, errors);
+        errors.close();
+        return buffer.toString().trim();
     }
 
     /// Parse the input file and write the output to the output file
     public static void parseFile(String inputFile, String outputFile) throws IOException {
+        parseFile(inputFile, outputFile, System.err);
+    }
+
+    public static void parseFile(String inputFile, String outputFile, PrintStream errors) throws IOException {
         JackTokenizer jt = new JackTokenizer(inputFile);
         CompilationEngine ce = new CompilationEngine(jt, outputFile);
+        ce.setErrors(errors);
+        ce.setFold(fold);
         ce.compileClass();
     }
-}
\ No newline at end of file
+}
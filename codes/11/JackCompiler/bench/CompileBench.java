@@ -0,0 +1,88 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/// Front end benchmark on .jack files: the tokenizer on its own, walking
+/// every token through the accessors the engine uses, and compileClass
+/// end to end. One op is one token.
+/// Usage: java CompileBench <.jack file or directory>...
+public class CompileBench {
+    // files are compiled this many times per round, so a round takes long
+    // enough to time
+    private static final int REPEAT = 20;
+
+    public static void main(String[] args) throws Exception {
+        List<String> files = new ArrayList<>();
+        for (String arg : args) {
+            collect(new File(arg), files);
+        }
+        if (files.isEmpty()) {
+            System.err.println("Usage: java CompileBench <jack_file | directory>...");
+            System.exit(1);
+        }
+        long tokens = 0;
+        for (String file : files) {
+            JackTokenizer jt = new JackTokenizer(file);
+            while (jt.hasMoreTokens()) {
+                tokens++;
+                jt.advance();
+            }
+        }
+        System.out.printf("%d files, %d tokens; one op is one token%n", files.size(), tokens);
+
+        BenchHarness.measure("tokenizer accessors", tokens * REPEAT, () -> {
+            long sum = 0;
+            for (int r = 0; r < REPEAT; r++) {
+                for (String file : files) {
+                    JackTokenizer jt = new JackTokenizer(file);
+                    while (jt.hasMoreTokens()) {
+                        switch (jt.tokenType()) {
+                            case "keyword":
+                                sum += jt.keyWord().length();
+                                break;
+                            case "symbol":
+                                sum += jt.symbol().charAt(0);
+                                break;
+                            case "identifier":
+                                sum += jt.identifier().length();
+                                break;
+                            case "integerConstant":
+                                sum += jt.intVal();
+                                break;
+                            default:
+                                sum += jt.stringVal().length();
+                        }
+                        jt.advance();
+                    }
+                }
+            }
+            return sum;
+        });
+
+        File output = File.createTempFile("bench", ".vm");
+        output.deleteOnExit();
+        BenchHarness.measure("compileClass", tokens * REPEAT, () -> {
+            for (int r = 0; r < REPEAT; r++) {
+                for (String file : files) {
+                    JackTokenizer jt = new JackTokenizer(file);
+                    new CompilationEngine(jt, output.getPath()).compileClass();
+                }
+            }
+            return output.length();
+        });
+    }
+
+    static void collect(File file, List<String> files) {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                java.util.Arrays.sort(children);
+                for (File child : children) {
+                    collect(child, files);
+                }
+            }
+        } else if (file.getName().endsWith(".jack")) {
+            files.add(file.getPath());
+        }
+    }
+}
@@ -0,0 +1,46 @@
+import java.lang.management.ManagementFactory;
+
+/// Measurement loop shared by the VM translator (codes/08) and Jack
+/// compiler (codes/11) benchmarks, whose bench targets compile it from
+/// here. Each benchmark runs a few warm-up rounds, then timed rounds, and
+/// reports the time and the bytes allocated per operation. Round counts can be changed with
+/// -Dbench.warmup=n and -Dbench.rounds=n. -Dbench.filter=text only runs
+/// the benchmarks whose name contains text; running each one in its own
+/// JVM keeps the JIT profile of one from slowing down the next.
+public class BenchHarness {
+    /// One round of work. Returns a checksum so the JIT cannot drop the work.
+    public interface Workload {
+        long run() throws Exception;
+    }
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static final int WARMUP = Integer.getInteger("bench.warmup", 5);
+    private static final int ROUNDS = Integer.getInteger("bench.rounds", 10);
+    private static final String FILTER = System.getProperty("bench.filter", "");
+
+    public static volatile long sink;
+
+    /// Run the workload and print ns/op, ops/s and bytes/op, where one round
+    /// of the workload performs opsPerRound operations.
+    public static void measure(String name, long opsPerRound, Workload workload) throws Exception {
+        if (!name.contains(FILTER)) {
+            return;
+        }
+        for (int i = 0; i < WARMUP; i++) {
+            sink += workload.run();
+        }
+        long threadId = Thread.currentThread().getId();
+        long bytesBefore = THREADS.getThreadAllocatedBytes(threadId);
+        long timeBefore = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            sink += workload.run();
+        }
+        long time = System.nanoTime() - timeBefore;
+        long bytes = THREADS.getThreadAllocatedBytes(threadId) - bytesBefore;
+
+        double ops = (double) opsPerRound * ROUNDS;
+        System.out.printf("%-36s %12.1f ns/op %14.0f ops/s %12.1f B/op%n",
+                name, time / ops, ops * 1e9 / time, bytes / ops);
+    }
+}